@@ -2,6 +2,8 @@ package org.jetbrains.android;
 
 import com.android.ddmlib.AndroidDebugBridge;
 import com.intellij.openapi.components.ApplicationComponent;
+import org.jetbrains.android.compiler.ResourceDigestCache;
+import org.jetbrains.android.facet.FrameworkResources;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -17,6 +19,8 @@ public class AndroidPlugin implements ApplicationComponent {
     }
 
     public void disposeComponent() {
+        ResourceDigestCache.getInstance().save();
+        FrameworkResources.getInstance().save();
         AndroidDebugBridge.terminate();
     }
 }
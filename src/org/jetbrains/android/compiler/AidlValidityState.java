@@ -0,0 +1,139 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.compiler.ValidityState;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * State of an .aidl file: digest of its content and digests of the .aidl files it imports, directly or through other
+ * imported files, so that a change of an imported parcelable or interface regenerates exactly its importers.
+ *
+ * @author Alexey Efimov
+ */
+public class AidlValidityState implements ValidityState {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.AidlValidityState");
+
+    private static final Pattern IMPORT_PATTERN = Pattern.compile("^\\s*import\\s+([\\w\\.]+)\\s*;", Pattern.MULTILINE);
+    private static final byte[] NO_DIGEST = new byte[ResourceDigestCache.DIGEST_LENGTH];
+
+    private final boolean myGeneratedFileExists;
+    private final byte[] mySourceDigest;
+    private final String[] myImports;
+    private final byte[] myImportDigests;
+
+    public AidlValidityState(@NotNull Dependencies dependencies, boolean generatedFileExists) {
+        // a state with a file that couldn't be read must not match, like one without the generated file
+        myGeneratedFileExists = generatedFileExists && dependencies.myReadable;
+        mySourceDigest = dependencies.mySourceDigest;
+        myImports = dependencies.myImports;
+        myImportDigests = dependencies.myImportDigests;
+    }
+
+    public AidlValidityState(DataInput is) throws IOException {
+        myGeneratedFileExists = is.readBoolean();
+        mySourceDigest = new byte[ResourceDigestCache.DIGEST_LENGTH];
+        is.readFully(mySourceDigest);
+        int count = is.readInt();
+        myImports = new String[count];
+        for (int i = 0; i < count; i++) {
+            myImports[i] = is.readUTF();
+        }
+        myImportDigests = new byte[count * ResourceDigestCache.DIGEST_LENGTH];
+        is.readFully(myImportDigests);
+    }
+
+    public boolean equalsTo(ValidityState otherState) {
+        if (!(otherState instanceof AidlValidityState)) {
+            return false;
+        }
+        AidlValidityState rhs = (AidlValidityState) otherState;
+        return myGeneratedFileExists && rhs.myGeneratedFileExists && Arrays.equals(mySourceDigest, rhs.mySourceDigest) &&
+                Arrays.equals(myImports, rhs.myImports) && Arrays.equals(myImportDigests, rhs.myImportDigests);
+    }
+
+    public void save(DataOutput os) throws IOException {
+        os.writeBoolean(myGeneratedFileExists);
+        os.write(mySourceDigest);
+        os.writeInt(myImports.length);
+        for (String anImport : myImports) {
+            os.writeUTF(anImport);
+        }
+        os.write(myImportDigests);
+    }
+
+    /**
+     * Content digests of an .aidl file and of the .aidl files it imports, transitively. Imports are looked up in the
+     * source roots of the module and of the modules it depends on. Must be collected in a read action.
+     */
+    public static final class Dependencies {
+        private final byte[] mySourceDigest;
+        private final String[] myImports;
+        private final byte[] myImportDigests;
+        private boolean myReadable = true;
+
+        public Dependencies(@NotNull VirtualFile file, @NotNull VirtualFile[] sourceRoots) {
+            LinkedList<String> queue = new LinkedList<String>();
+            byte[] sourceDigest = NO_DIGEST;
+            try {
+                sourceDigest = ResourceDigestCache.getInstance().getDigest(file);
+                collectImports(file, queue);
+            } catch (IOException e) {
+                LOG.info(e);
+                myReadable = false;
+            }
+            mySourceDigest = sourceDigest;
+
+            Map<String, byte[]> imports = new TreeMap<String, byte[]>();
+            while (!queue.isEmpty()) {
+                String qualifiedName = queue.removeFirst();
+                if (imports.containsKey(qualifiedName)) continue;
+                imports.put(qualifiedName, getImportDigest(qualifiedName, sourceRoots, queue));
+            }
+            myImports = imports.keySet().toArray(new String[imports.size()]);
+            myImportDigests = new byte[myImports.length * ResourceDigestCache.DIGEST_LENGTH];
+            int offset = 0;
+            for (byte[] digest : imports.values()) {
+                System.arraycopy(digest, 0, myImportDigests, offset, digest.length);
+                offset += digest.length;
+            }
+        }
+
+        /**
+         * Imports which aren't .aidl files of the source roots (e.g. framework classes) get an empty digest. Imports of
+         * an imported file are added to the queue.
+         */
+        private byte[] getImportDigest(String qualifiedName, VirtualFile[] sourceRoots, List<String> queue) {
+            String relativePath = qualifiedName.replace('.', '/') + ".aidl";
+            for (VirtualFile sourceRoot : sourceRoots) {
+                VirtualFile imported = sourceRoot.findFileByRelativePath(relativePath);
+                if (imported != null) {
+                    try {
+                        byte[] digest = ResourceDigestCache.getInstance().getDigest(imported);
+                        collectImports(imported, queue);
+                        return digest;
+                    } catch (IOException e) {
+                        LOG.info(e);
+                        myReadable = false;
+                    }
+                }
+            }
+            return NO_DIGEST;
+        }
+
+        private static void collectImports(VirtualFile file, List<String> result) throws IOException {
+            String text = new String(file.contentsToByteArray(), file.getCharset().name());
+            Matcher matcher = IMPORT_PATTERN.matcher(text);
+            while (matcher.find()) {
+                result.add(matcher.group(1));
+            }
+        }
+    }
+}
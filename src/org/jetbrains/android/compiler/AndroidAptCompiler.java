@@ -5,20 +5,26 @@ import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.compiler.*;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.ModuleFileIndex;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.android.compiler.tools.AndroidApt;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.android.compiler.tools.ExternalCompilerTool;
 import org.jetbrains.android.dom.manifest.Manifest;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Apt compiler.
@@ -32,15 +38,41 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
         Module[] affectedModules = context.getCompileScope().getAffectedModules();
         if (affectedModules != null && affectedModules.length > 0) {
             Application application = ApplicationManager.getApplication();
-            return application.runReadAction(new PrepareAction(context));
+            PrepareAction prepareAction = new PrepareAction(context);
+            GenerationItem[] items = application.runReadAction(prepareAction);
+            deleteStaleFiles(context, prepareAction.getStaleFiles());
+            return items;
         }
         return EMPTY_GENERATION_ITEM_ARRAY;
     }
 
+    /**
+     * Deletes R.java left in source roots other than the one R.java is generated into, so the package doesn't have two
+     * R classes, one of them out of date.
+     */
+    private static void deleteStaleFiles(CompileContext context, List<File> staleFiles) {
+        for (File file : staleFiles) {
+            if (FileUtil.delete(file)) {
+                CompilerUtil.refreshIOFile(file);
+                context.addMessage(CompilerMessageCategory.INFORMATION, "Deleted " + file.getPath() +
+                        ", R.java is generated into a single source root", null, -1, -1);
+            } else {
+                context.addMessage(CompilerMessageCategory.WARNING, "Cannot delete " + file.getPath() +
+                        ", R.java is generated into another source root", null, -1, -1);
+            }
+        }
+    }
+
     public GenerationItem[] generate(CompileContext context, GenerationItem[] items, VirtualFile outputRootDirectory) {
         if (items != null && items.length > 0) {
             context.getProgressIndicator().setText("Generating R.java...");
-            GenerationItem[] generationItems = doGenerate(context, items);
+            GenerationItem[] generationItems;
+            ExternalCompilerTool.setOutputListener(AndroidCompileUtil.createProgressListener(context));
+            try {
+                generationItems = doGenerate(context, items);
+            } finally {
+                ExternalCompilerTool.setOutputListener(null);
+            }
             for (GenerationItem item : generationItems) {
                 File generatedFile = ((AptGenerationItem) item).getGeneratedFile();
                 if (generatedFile != null) {
@@ -53,28 +85,57 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
     }
 
     private static GenerationItem[] doGenerate(CompileContext context, GenerationItem[] items) {
-        List<GenerationItem> results = new ArrayList<GenerationItem>(items.length);
+        List<AptGenerationItem> aptItems = new ArrayList<AptGenerationItem>(items.length);
+        List<AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>> tasks =
+                new ArrayList<AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>>(items.length);
         for (GenerationItem item : items) {
             if (item instanceof AptGenerationItem) {
-                AptGenerationItem aptItem = (AptGenerationItem) item;
-                try {
-                    Map<CompilerMessageCategory, List<String>> messages = AndroidApt.compile(
-                            aptItem.getRootPath(),
-                            aptItem.getSourceRootPath(),
-                            aptItem.getResourcesPath(),
-                            aptItem.getSdkPath()
-                    );
-                    AndroidCompileUtil.addMessages(context, messages);
-                    if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
-                        results.add(aptItem);
-                    }
-                } catch (IOException e) {
-                    context.addMessage(CompilerMessageCategory.ERROR, e.getMessage(), null, -1, -1);
+                final AptGenerationItem aptItem = (AptGenerationItem) item;
+                aptItems.add(aptItem);
+                tasks.add(new AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>(aptItem.getModule(),
+                        new Callable<Map<CompilerMessageCategory, List<String>>>() {
+                            public Map<CompilerMessageCategory, List<String>> call() throws IOException {
+                                Map<CompilerMessageCategory, List<String>> messages;
+                                long lastModified = aptItem.getGeneratedFile().lastModified();
+                                if (aptItem.isInProcess() && RJavaWriter.getInstance().write(aptItem.getModule(),
+                                        aptItem.getResourcesPath(), aptItem.getPackage(), aptItem.getGeneratedFile())) {
+                                    messages = AndroidCompileUtil.createMessages();
+                                }
+                                else {
+                                    messages = AndroidApt.compile(
+                                            aptItem.getRootPath(),
+                                            aptItem.getSourceRootPath(),
+                                            aptItem.getResourcesPath(),
+                                            aptItem.getSdkPath()
+                                    );
+                                }
+                                BuildTrace.addOutput(aptItem.getGeneratedFile(), lastModified);
+                                return messages;
+                            }
+                        }));
+            }
+        }
+        List<Future<Map<CompilerMessageCategory, List<String>>>> futures =
+                AndroidBuildScheduler.getInstance(context).run(context, AndroidBuildScheduler.Stage.APT, tasks);
+        List<GenerationItem> results = new ArrayList<GenerationItem>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                Map<CompilerMessageCategory, List<String>> messages = futures.get(i).get();
+                AndroidCompileUtil.addMessages(context, messages);
+                if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                    results.add(aptItems.get(i));
                 }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                context.addMessage(CompilerMessageCategory.ERROR, cause.getMessage(), null, -1, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
         return results.toArray(new GenerationItem[results.size()]);
     }
+
     @NotNull
     public String getDescription() {
         return AndroidApt.TOOL;
@@ -85,7 +146,7 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
     }
 
     public ValidityState createValidityState(DataInput is) throws IOException {
-        return new ResourcesValidityState(is);
+        return new ResourceSymbolsValidityState(is);
     }
 
     private final static class AptGenerationItem implements GenerationItem {
@@ -94,14 +155,19 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
         private final String myResourcesPath;
         private final String mySourceRootPath;
         private final String mySdkPath;
+        private final String myPackage;
+        private final boolean myInProcess;
         private final File myGeneratedFile;
 
-        private AptGenerationItem(Module module, String rootPath, String resourcesPath, String sourceRootPath, String sdkPath, String packageValue) {
+        private AptGenerationItem(Module module, String rootPath, String resourcesPath, String sourceRootPath, String sdkPath,
+                                  String packageValue, boolean inProcess) {
             myModule = module;
             myRootPath = rootPath;
             myResourcesPath = resourcesPath;
             mySourceRootPath = sourceRootPath;
             mySdkPath = sdkPath;
+            myPackage = packageValue;
+            myInProcess = inProcess;
             myGeneratedFile = new File(sourceRootPath, packageValue.replace('.', File.separatorChar) + File.separatorChar + "R.java");
         }
 
@@ -122,7 +188,7 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
         }
 
         public ValidityState getValidityState() {
-            return new ResourcesValidityState(myModule, false);
+            return new ResourceSymbolsValidityState(myModule, myPackage, myGeneratedFile);
         }
 
         public Module getModule() {
@@ -140,15 +206,34 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
         public File getGeneratedFile() {
             return myGeneratedFile;
         }
+
+        public String getPackage() {
+            return myPackage;
+        }
+
+        /**
+         * Whether R.java is written by {@link RJavaWriter} when it can.
+         */
+        public boolean isInProcess() {
+            return myInProcess;
+        }
     }
 
     private static final class PrepareAction implements Computable<GenerationItem[]> {
         private final CompileContext myContext;
+        private final List<File> myStaleFiles = new ArrayList<File>();
 
         public PrepareAction(CompileContext context) {
             myContext = context;
         }
 
+        /**
+         * Returns R.java files found in source roots R.java is no longer generated into.
+         */
+        public List<File> getStaleFiles() {
+            return myStaleFiles;
+        }
+
         public GenerationItem[] compute() {
             CompileScope compileScope = myContext.getCompileScope();
             Module[] modules = compileScope.getAffectedModules();
@@ -163,9 +248,21 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
                         if (packageName != null) {
                             ModuleRootManager rootManager = ModuleRootManager.getInstance(module);
                             VirtualFile[] sourceRoots = rootManager.getSourceRoots();
+                            if (facet.getConfiguration().SINGLE_R_SOURCE_ROOT) {
+                                VirtualFile sourceRoot = findCanonicalSourceRoot(rootManager, sourceRoots, packageName);
+                                String rJavaPath = packageName.replace('.', '/') + "/R.java";
+                                for (VirtualFile otherRoot : sourceRoots) {
+                                    VirtualFile staleFile = otherRoot != sourceRoot ? otherRoot.findFileByRelativePath(rJavaPath) : null;
+                                    if (staleFile != null) {
+                                        myStaleFiles.add(new File(staleFile.getPath()));
+                                    }
+                                }
+                                sourceRoots = sourceRoot != null ? new VirtualFile[]{sourceRoot} : VirtualFile.EMPTY_ARRAY;
+                            }
                             for (VirtualFile sourceRoot : sourceRoots) {
                                 items.add(new AptGenerationItem(module, resourcesDir.getParent().getPath(), resourcesDir.getPath(),
-                                        sourceRoot.getPath(), facet.getSdkPath(), packageName));
+                                        sourceRoot.getPath(), facet.getSdkPath(), packageName,
+                                        facet.getConfiguration().IN_PROCESS_R_JAVA));
                             }
                         }
                     }
@@ -173,5 +270,26 @@ public class AndroidAptCompiler implements SourceGeneratingCompiler {
             }
             return items.toArray(new GenerationItem[items.size()]);
         }
+
+        /**
+         * Returns the source root R.java is generated into: the root which already contains R.java for the package,
+         * otherwise the first production source root, otherwise the first source root.
+         */
+        @Nullable
+        private static VirtualFile findCanonicalSourceRoot(ModuleRootManager rootManager, VirtualFile[] sourceRoots, String packageName) {
+            String rJavaPath = packageName.replace('.', '/') + "/R.java";
+            for (VirtualFile sourceRoot : sourceRoots) {
+                if (sourceRoot.findFileByRelativePath(rJavaPath) != null) {
+                    return sourceRoot;
+                }
+            }
+            ModuleFileIndex fileIndex = rootManager.getFileIndex();
+            for (VirtualFile sourceRoot : sourceRoots) {
+                if (!fileIndex.isInTestSourceContent(sourceRoot)) {
+                    return sourceRoot;
+                }
+            }
+            return sourceRoots.length > 0 ? sourceRoots[0] : null;
+        }
     }
 }
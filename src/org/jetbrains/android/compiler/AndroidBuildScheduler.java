@@ -0,0 +1,456 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.compiler.CompileContext;
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Schedules the per-module tasks of the Android build stages (aidl, apt, javac, dx, package) of one make. The stages
+ * are run by the compiler driver one after another, so a stage only starts when the previous one is done for all
+ * modules; inside a stage, tasks of a module wait for the tasks of the modules it depends on, and independent modules
+ * run concurrently on a bounded pool. A stage has as many slots as threads; a running task holds one, and tasks it runs
+ * in parallel itself through {@link ParallelCompileExecutor} may only take the idle ones.
+ * <p/>
+ * Wall-clock time of every stage and module is recorded. Each stage reports its time to the compile log when it is
+ * done, and the packaging stage also reports the critical path of the whole build. Javac isn't run by the scheduler,
+ * its time is the gap between the last source generating stage and the first class processing stage. The timings, along
+ * with the tool invocations made by the tasks, are also written to a {@link BuildTrace} file after every stage.
+ *
+ * @author Alexey Efimov
+ */
+final class AndroidBuildScheduler {
+    enum Stage {
+        AIDL("aidl"), APT("apt"), JAVAC("javac"), DEX("dx"), PACKAGE("package");
+
+        private final String myName;
+
+        Stage(@NonNls String name) {
+            myName = name;
+        }
+
+        boolean isSourceGenerating() {
+            return this == AIDL || this == APT;
+        }
+
+        public String toString() {
+            return myName;
+        }
+    }
+
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.AndroidBuildScheduler");
+
+    private static final Key<AndroidBuildScheduler> KEY = Key.create("AndroidBuildScheduler");
+
+    private final Map<Stage, Map<Module, Span>> myModuleSpans = new EnumMap<Stage, Map<Module, Span>>(Stage.class);
+    private final Map<Stage, Span> myStageSpans = new EnumMap<Stage, Span>(Stage.class);
+    private final Map<Module, Set<Module>> myDependencies = new HashMap<Module, Set<Module>>();
+    private final BuildTrace myTrace;
+
+    private AndroidBuildScheduler(@NotNull BuildTrace trace) {
+        myTrace = trace;
+    }
+
+    /**
+     * Returns the scheduler of the make the context belongs to.
+     */
+    @NotNull
+    static synchronized AndroidBuildScheduler getInstance(@NotNull CompileContext context) {
+        AndroidBuildScheduler scheduler = context.getUserData(KEY);
+        if (scheduler == null) {
+            scheduler = new AndroidBuildScheduler(BuildTrace.create(context.getProject().getName()));
+            context.putUserData(KEY, scheduler);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Runs the tasks of a stage and waits for them. Futures are returned in the order of the tasks and are all done;
+     * if the calling thread is interrupted, only the futures of the leading finished tasks are returned.
+     */
+    @NotNull
+    <T> List<Future<T>> run(@NotNull CompileContext context, @NotNull Stage stage, @NotNull List<ModuleTask<T>> tasks) {
+        Set<Module> modules = new LinkedHashSet<Module>();
+        for (ModuleTask<T> task : tasks) {
+            modules.add(task.myModule);
+        }
+        int[][] dependents = getDependents(tasks, modules);
+        int[] pending = new int[tasks.size()];
+        for (int[] taskDependents : dependents) {
+            for (int dependent : taskDependents) {
+                pending[dependent]++;
+            }
+        }
+        int threads = ParallelCompileExecutor.getThreadCount(modules.toArray(new Module[modules.size()]));
+        Semaphore slots = new Semaphore(threads);
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (ModuleTask<T> task : tasks) {
+            futures.add(new FutureTask<T>(new TimedTask<T>(stage, task, slots)));
+        }
+        recordJavac(stage);
+        if (threads <= 1 || tasks.size() <= 1) {
+            runInline(futures, dependents, pending);
+        }
+        else {
+            runConcurrently(futures, dependents, pending, Math.min(threads, tasks.size()));
+        }
+        report(context, stage);
+
+        List<Future<T>> result = new ArrayList<Future<T>>(futures.size());
+        for (FutureTask<T> future : futures) {
+            if (!future.isDone() || future.isCancelled()) break;
+            result.add(future);
+        }
+        return result;
+    }
+
+    private static <T> void runInline(List<FutureTask<T>> futures, int[][] dependents, int[] pending) {
+        LinkedList<Integer> ready = getReady(pending);
+        while (!ready.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            int index = ready.removeFirst();
+            futures.get(index).run();
+            release(index, dependents, pending, ready);
+        }
+    }
+
+    private static <T> void runConcurrently(final List<FutureTask<T>> futures, int[][] dependents, int[] pending,
+                                            int threads) {
+        ExecutorService executor = ParallelCompileExecutor.createPool(threads);
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+        try {
+            LinkedList<Integer> ready = getReady(pending);
+            int running = 0;
+            while (!ready.isEmpty() || running > 0) {
+                while (!ready.isEmpty()) {
+                    final int index = ready.removeFirst();
+                    completionService.submit(ParallelCompileExecutor.propagateThreadContext(new Callable<Integer>() {
+                        public Integer call() {
+                            futures.get(index).run();
+                            return index;
+                        }
+                    }));
+                    running++;
+                }
+                int finished = completionService.take().get();
+                running--;
+                release(finished, dependents, pending, ready);
+            }
+        } catch (InterruptedException e) {
+            // compilation was cancelled, results of unfinished tasks are dropped
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // can't happen, failures of the tasks are kept in their futures
+            throw new IllegalStateException(e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static LinkedList<Integer> getReady(int[] pending) {
+        LinkedList<Integer> ready = new LinkedList<Integer>();
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+        return ready;
+    }
+
+    private static void release(int index, int[][] dependents, int[] pending, LinkedList<Integer> ready) {
+        for (int dependent : dependents[index]) {
+            if (--pending[dependent] == 0) {
+                ready.add(dependent);
+            }
+        }
+    }
+
+    /**
+     * For every task, returns the indices of the tasks which have to wait for it: the tasks of the modules which
+     * depend, directly or through other modules, on the module of the task.
+     */
+    private <T> int[][] getDependents(List<ModuleTask<T>> tasks, Set<Module> modules) {
+        Map<Module, List<Integer>> indices = new HashMap<Module, List<Integer>>();
+        for (int i = 0; i < tasks.size(); i++) {
+            List<Integer> moduleIndices = indices.get(tasks.get(i).myModule);
+            if (moduleIndices == null) {
+                moduleIndices = new ArrayList<Integer>();
+                indices.put(tasks.get(i).myModule, moduleIndices);
+            }
+            moduleIndices.add(i);
+        }
+        List<List<Integer>> dependents = new ArrayList<List<Integer>>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            dependents.add(new ArrayList<Integer>());
+        }
+        for (Module module : modules) {
+            for (Module dependency : getDependencies(module)) {
+                List<Integer> dependencyIndices = indices.get(dependency);
+                if (dependencyIndices == null || !isOrdered(module, dependency)) continue;
+                for (int dependencyIndex : dependencyIndices) {
+                    dependents.get(dependencyIndex).addAll(indices.get(module));
+                }
+            }
+        }
+        int[][] result = new int[tasks.size()][];
+        for (int i = 0; i < result.length; i++) {
+            List<Integer> taskDependents = dependents.get(i);
+            result[i] = new int[taskDependents.size()];
+            for (int j = 0; j < result[i].length; j++) {
+                result[i][j] = taskDependents.get(j);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the modules the module depends on, transitively.
+     */
+    @NotNull
+    private synchronized Set<Module> getDependencies(final Module module) {
+        Set<Module> dependencies = myDependencies.get(module);
+        if (dependencies == null) {
+            dependencies = ApplicationManager.getApplication().runReadAction(new Computable<Set<Module>>() {
+                public Set<Module> compute() {
+                    Set<Module> result = new LinkedHashSet<Module>();
+                    collectDependencies(module, result);
+                    result.remove(module);
+                    return result;
+                }
+            });
+            myDependencies.put(module, dependencies);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Modules of a dependency cycle are treated as independent.
+     */
+    private boolean isOrdered(Module module, Module dependency) {
+        return !getDependencies(dependency).contains(module);
+    }
+
+    private static void collectDependencies(Module module, Set<Module> result) {
+        for (Module dependency : ModuleRootManager.getInstance(module).getDependencies()) {
+            if (result.add(dependency)) {
+                collectDependencies(dependency, result);
+            }
+        }
+    }
+
+    private synchronized void record(Stage stage, Module module, long start, long end) {
+        Map<Module, Span> spans = myModuleSpans.get(stage);
+        if (spans == null) {
+            spans = new LinkedHashMap<Module, Span>();
+            myModuleSpans.put(stage, spans);
+        }
+        include(spans, module, start, end);
+        include(myStageSpans, stage, start, end);
+    }
+
+    private static <K> void include(Map<K, Span> spans, K key, long start, long end) {
+        Span span = spans.get(key);
+        if (span == null) {
+            spans.put(key, new Span(start, end));
+        }
+        else {
+            span.include(start, end);
+        }
+    }
+
+    /**
+     * When the first class processing stage starts, takes the time since the end of source generation as javac time.
+     */
+    private synchronized void recordJavac(Stage stage) {
+        if (stage.isSourceGenerating() || myStageSpans.containsKey(Stage.JAVAC)) return;
+        long generationEnd = -1;
+        for (Stage generationStage : new Stage[]{Stage.AIDL, Stage.APT}) {
+            Span span = myStageSpans.get(generationStage);
+            if (span != null) {
+                generationEnd = Math.max(generationEnd, span.myEnd);
+            }
+        }
+        if (generationEnd >= 0) {
+            long now = System.nanoTime();
+            myStageSpans.put(Stage.JAVAC, new Span(generationEnd, now));
+            myTrace.addStage(Stage.JAVAC.toString(), "all", generationEnd, now);
+        }
+    }
+
+    private synchronized void report(CompileContext context, Stage stage) {
+        Span stageSpan = myStageSpans.get(stage);
+        Map<Module, Span> moduleSpans = myModuleSpans.get(stage);
+        if (stageSpan == null || moduleSpans == null) return;
+        Module slowest = null;
+        for (Map.Entry<Module, Span> entry : moduleSpans.entrySet()) {
+            if (slowest == null || entry.getValue().getLength() > moduleSpans.get(slowest).getLength()) {
+                slowest = entry.getKey();
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("Android ").append(stage).append(": ").append(toMillis(stageSpan.getLength()))
+                .append(" ms wall-clock, ").append(moduleSpans.size()).append(moduleSpans.size() == 1 ? " module" : " modules");
+        if (slowest != null && moduleSpans.size() > 1) {
+            builder.append(", slowest ").append(slowest.getName()).append(' ')
+                    .append(toMillis(moduleSpans.get(slowest).getLength())).append(" ms");
+        }
+        context.addMessage(CompilerMessageCategory.STATISTICS, builder.toString(), null, -1, -1);
+        try {
+            myTrace.write();
+        } catch (IOException e) {
+            LOG.info(e);
+        }
+        if (stage == Stage.PACKAGE) {
+            context.addMessage(CompilerMessageCategory.STATISTICS, getCriticalPath(), null, -1, -1);
+            context.addMessage(CompilerMessageCategory.STATISTICS, "Android build trace: " + myTrace.getFile().getPath(),
+                    null, -1, -1);
+        }
+    }
+
+    /**
+     * Stages are barriers, so the critical path is the longest chain of dependent modules in every stage, one stage
+     * after another.
+     */
+    @NotNull
+    private String getCriticalPath() {
+        StringBuilder path = new StringBuilder();
+        long total = 0;
+        for (Stage stage : Stage.values()) {
+            Map<Module, Span> moduleSpans = myModuleSpans.get(stage);
+            if (moduleSpans == null) {
+                Span span = myStageSpans.get(stage);
+                if (span != null) {
+                    total += span.getLength();
+                    appendStep(path, stage, null, span.getLength());
+                }
+                continue;
+            }
+            Map<Module, Long> finish = new HashMap<Module, Long>();
+            Map<Module, Module> previous = new HashMap<Module, Module>();
+            Module last = null;
+            for (Module module : moduleSpans.keySet()) {
+                computeFinish(module, moduleSpans, finish, previous);
+                if (last == null || finish.get(module) > finish.get(last)) {
+                    last = module;
+                }
+            }
+            if (last == null) continue;
+            total += finish.get(last);
+            LinkedList<Module> chain = new LinkedList<Module>();
+            for (Module module = last; module != null; module = previous.get(module)) {
+                chain.addFirst(module);
+            }
+            for (Module module : chain) {
+                appendStep(path, stage, module, moduleSpans.get(module).getLength());
+            }
+        }
+        return "Android build critical path: " + toMillis(total) + " ms" + (path.length() > 0 ? " (" + path + ")" : "");
+    }
+
+    private long computeFinish(Module module, Map<Module, Span> spans, Map<Module, Long> finish,
+                               Map<Module, Module> previous) {
+        Long result = finish.get(module);
+        if (result != null) return result;
+        long start = 0;
+        for (Module dependency : getDependencies(module)) {
+            if (spans.containsKey(dependency) && isOrdered(module, dependency)) {
+                long dependencyFinish = computeFinish(dependency, spans, finish, previous);
+                if (dependencyFinish > start) {
+                    start = dependencyFinish;
+                    previous.put(module, dependency);
+                }
+            }
+        }
+        result = start + spans.get(module).getLength();
+        finish.put(module, result);
+        return result;
+    }
+
+    private static void appendStep(StringBuilder path, Stage stage, Module module, long nanos) {
+        if (path.length() > 0) {
+            path.append(" -> ");
+        }
+        path.append(stage);
+        if (module != null) {
+            path.append(' ').append(module.getName());
+        }
+        path.append(' ').append(toMillis(nanos)).append(" ms");
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Task of a stage belonging to a module. A module may have several tasks in a stage.
+     */
+    static final class ModuleTask<T> {
+        private final Module myModule;
+        private final Callable<T> myTask;
+
+        ModuleTask(@NotNull Module module, @NotNull Callable<T> task) {
+            myModule = module;
+            myTask = task;
+        }
+    }
+
+    private final class TimedTask<T> implements Callable<T> {
+        private final Stage myStage;
+        private final ModuleTask<T> myTask;
+        private final Semaphore mySlots;
+
+        private TimedTask(Stage stage, ModuleTask<T> task, Semaphore slots) {
+            myStage = stage;
+            myTask = task;
+            mySlots = slots;
+        }
+
+        public T call() throws Exception {
+            mySlots.acquire();
+            BuildTrace.Scope previousScope = BuildTrace.getScope();
+            Semaphore previousSlots = ParallelCompileExecutor.getSlots();
+            BuildTrace.setScope(myTrace.createScope(myTask.myModule.getName(), myStage.toString()));
+            ParallelCompileExecutor.setSlots(mySlots);
+            long start = System.nanoTime();
+            try {
+                return myTask.myTask.call();
+            } finally {
+                long end = System.nanoTime();
+                ParallelCompileExecutor.setSlots(previousSlots);
+                BuildTrace.setScope(previousScope);
+                mySlots.release();
+                record(myStage, myTask.myModule, start, end);
+                myTrace.addStage(myStage.toString(), myTask.myModule.getName(), start, end);
+            }
+        }
+    }
+
+    private static final class Span {
+        private long myStart;
+        private long myEnd;
+
+        private Span(long start, long end) {
+            myStart = start;
+            myEnd = end;
+        }
+
+        void include(long start, long end) {
+            myStart = Math.min(myStart, start);
+            myEnd = Math.max(myEnd, end);
+        }
+
+        long getLength() {
+            return myEnd - myStart;
+        }
+    }
+}
@@ -2,35 +2,113 @@ package org.jetbrains.android.compiler;
 
 import com.intellij.openapi.compiler.CompileContext;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.android.compiler.tools.ToolOutputListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * @author yole
  */
 public class AndroidCompileUtil {
-    private static Pattern ourMessagePattern = Pattern.compile("(.+):(\\d+):.+");
+    /**
+     * Error lines added to the context while their tool ran, with the number of times each was added; they are
+     * skipped when the messages of the finished tool are added.
+     */
+    private static final Key<Map<String, Integer>> STREAMED_LINES_KEY = Key.create("AndroidStreamedLines");
+    private static final Pattern WARNING_PATTERN = Pattern.compile("\\bwarning:", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Creates a listener which shows tool output in the progress indicator while the tool runs and adds error output
+     * to the context as it arrives, as a warning if the line says so. Other messages, and the summary of lines a tool
+     * printed over the retained limit, are added once the tool finishes, see {@link #addMessages}.
+     */
+    static ToolOutputListener createProgressListener(final CompileContext context) {
+        return new ToolOutputListener() {
+            public void onLine(@NotNull CompilerMessageCategory category, @NotNull String line) {
+                context.getProgressIndicator().setText2(line);
+                if (category == CompilerMessageCategory.ERROR) {
+                    Map<String, Integer> streamedLines = getStreamedLines(context);
+                    synchronized (streamedLines) {
+                        Integer count = streamedLines.get(line);
+                        streamedLines.put(line, count != null ? count + 1 : 1);
+                    }
+                    addMessage(context, ToolOutputParser.getInstance(context),
+                            WARNING_PATTERN.matcher(line).find() ? CompilerMessageCategory.WARNING : category, line, null);
+                }
+            }
+        };
+    }
+
+    private static synchronized Map<String, Integer> getStreamedLines(CompileContext context) {
+        Map<String, Integer> streamedLines = context.getUserData(STREAMED_LINES_KEY);
+        if (streamedLines == null) {
+            streamedLines = new HashMap<String, Integer>();
+            context.putUserData(STREAMED_LINES_KEY, streamedLines);
+        }
+        return streamedLines;
+    }
+
+    /**
+     * Returns true if the line was added to the context while its tool ran, and forgets one addition of it.
+     */
+    private static boolean removeStreamedLine(CompileContext context, String line) {
+        Map<String, Integer> streamedLines = getStreamedLines(context);
+        synchronized (streamedLines) {
+            Integer count = streamedLines.get(line);
+            if (count == null) return false;
+            if (count > 1) {
+                streamedLines.put(line, count - 1);
+            } else {
+                streamedLines.remove(line);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Creates empty messages of a tool run, in the form tools return them.
+     */
+    static Map<CompilerMessageCategory, List<String>> createMessages() {
+        Map<CompilerMessageCategory, List<String>> messages = new HashMap<CompilerMessageCategory, List<String>>(2);
+        messages.put(CompilerMessageCategory.INFORMATION, new ArrayList<String>());
+        messages.put(CompilerMessageCategory.ERROR, new ArrayList<String>());
+        return messages;
+    }
 
     static void addMessages(CompileContext context, Map<CompilerMessageCategory, List<String>> messages) {
+        addMessages(context, messages, null);
+    }
+
+    /**
+     * Adds tool messages to the context, navigating to the location a message refers to, or to the given URL if it
+     * doesn't refer to any. Error lines already added while the tool ran are skipped.
+     */
+    static void addMessages(CompileContext context, Map<CompilerMessageCategory, List<String>> messages,
+                            @Nullable String defaultUrl) {
+        ToolOutputParser parser = ToolOutputParser.getInstance(context);
         for (CompilerMessageCategory category : messages.keySet()) {
             List<String> messageList = messages.get(category);
             for (String message : messageList) {
-                String url = null;
-                int line = -1;
-                Matcher matcher = ourMessagePattern.matcher(message);
-                if (matcher.matches()) {
-                    String fileName = matcher.group(1);
-                    if (new File(fileName).exists()) {
-                        url = "file://" + fileName;
-                        line = Integer.parseInt(matcher.group(2));
-                    }
-                }
-                context.addMessage(category, message, url, line, -1);
+                if (category == CompilerMessageCategory.ERROR && removeStreamedLine(context, message)) continue;
+                addMessage(context, parser, category, message, defaultUrl);
             }
         }
     }
+
+    private static void addMessage(CompileContext context, ToolOutputParser parser, CompilerMessageCategory category,
+                                   String message, @Nullable String defaultUrl) {
+        ToolOutputParser.Location location = parser.parse(message);
+        if (location != null) {
+            context.addMessage(category, message, location.getUrl(), location.getLine(), location.getColumn());
+        } else {
+            context.addMessage(category, message, defaultUrl, -1, -1);
+        }
+    }
 }
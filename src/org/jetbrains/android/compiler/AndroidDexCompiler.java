@@ -6,19 +6,31 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.compiler.*;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.roots.CompilerModuleExtension;
+import com.intellij.openapi.roots.LibraryOrderEntry;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.OrderEntry;
+import com.intellij.openapi.roots.OrderRootType;
 import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.AndroidManager;
 import org.jetbrains.android.compiler.tools.AndroidDx;
+import org.jetbrains.android.compiler.tools.DxOptions;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.android.compiler.tools.ExternalCompilerTool;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.facet.AndroidFacetConfiguration;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Android Dex compiler.
@@ -38,8 +50,14 @@ public class AndroidDexCompiler implements ClassPostProcessingCompiler {
 
     public ProcessingItem[] process(CompileContext context, ProcessingItem[] items) {
         if (items != null && items.length > 0) {
-            Application application = ApplicationManager.getApplication();
-            return application.runReadAction(new ProcessAction(context, items));
+            ExternalCompilerTool.setOutputListener(AndroidCompileUtil.createProgressListener(context));
+            try {
+                return new ProcessAction(context, items).compute();
+            } finally {
+                ExternalCompilerTool.setOutputListener(null);
+                // jar digests are the keys of pre-dexed libraries
+                ResourceDigestCache.getInstance().save();
+            }
         }
         return ProcessingItem.EMPTY_ARRAY;
     }
@@ -54,7 +72,7 @@ public class AndroidDexCompiler implements ClassPostProcessingCompiler {
     }
 
     public ValidityState createValidityState(DataInput is) throws IOException {
-        return new EmptyValidityState();
+        return new ClassesValidityState(is);
     }
 
     private final class PrepareAction implements Computable<ProcessingItem[]> {
@@ -74,14 +92,54 @@ public class AndroidDexCompiler implements ClassPostProcessingCompiler {
                     CompilerModuleExtension extension = CompilerModuleExtension.getInstance(module);
                     VirtualFile outputPath = extension.getCompilerOutputPath();
                     AndroidFacetConfiguration configuration = facet.getConfiguration();
-                    items.add(new DexItem(module, outputPath, configuration.getSdkPath()));
+                    DxOptions dxOptions = new DxOptions(configuration.DX_AUTO_TUNING, configuration.DX_HEAP_SIZE,
+                            configuration.DX_JVM_OPTIONS != null ? configuration.DX_JVM_OPTIONS : "", configuration.DX_THREADS,
+                            configuration.DX_NO_OPTIMIZE);
+                    String sdkPath = configuration.getSdkPath();
+                    items.add(new DexItem(module, outputPath, sdkPath, getLibraryJars(module, sdkPath),
+                            configuration.INCREMENTAL_DEX, dxOptions, configuration.DX_IN_PROCESS));
                 }
             }
             return items.toArray(new ProcessingItem[items.size()]);
         }
+
+        /**
+         * Returns the jars of the libraries of the module and of the modules it depends on, transitively. Jars of the SDK
+         * are left out, they are on the device.
+         */
+        private List<String> getLibraryJars(Module module, String sdkPath) {
+            Set<Module> modules = new LinkedHashSet<Module>();
+            collectModules(module, modules);
+            String sdkPrefix = sdkPath != null ? FileUtil.toSystemIndependentName(sdkPath) + "/" : null;
+            Set<String> result = new LinkedHashSet<String>();
+            for (Module libraryModule : modules) {
+                for (OrderEntry entry : ModuleRootManager.getInstance(libraryModule).getOrderEntries()) {
+                    if (!(entry instanceof LibraryOrderEntry)) continue;
+                    for (VirtualFile root : entry.getFiles(OrderRootType.CLASSES)) {
+                        VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(root);
+                        if (jar != null && (sdkPrefix == null || !jar.getPath().startsWith(sdkPrefix))) {
+                            result.add(FileUtil.toSystemDependentName(jar.getPath()));
+                        }
+                    }
+                }
+            }
+            return new ArrayList<String>(result);
+        }
+
+        private void collectModules(Module module, Set<Module> result) {
+            if (result.add(module)) {
+                for (Module dependency : ModuleRootManager.getInstance(module).getDependencies()) {
+                    collectModules(dependency, result);
+                }
+            }
+        }
     }
 
-    private final static class ProcessAction implements Computable<ProcessingItem[]> {
+    /**
+     * Dexes the items. Everything dx needs is taken from the project model in a short read action, then the modules
+     * are dexed in parallel without holding the read lock, so that dexing doesn't block write actions.
+     */
+    private final static class ProcessAction {
         private final CompileContext myContext;
         private final ProcessingItem[] myItems;
 
@@ -91,46 +149,153 @@ public class AndroidDexCompiler implements ClassPostProcessingCompiler {
         }
 
         public ProcessingItem[] compute() {
-            List<ProcessingItem> results = new ArrayList<ProcessingItem>(myItems.length);
-            for (ProcessingItem item : myItems) {
-                if (item instanceof DexItem) {
-                    DexItem dexItem = (DexItem) item;
-                    try {
-                        Map<CompilerMessageCategory, List<String>> messages = AndroidDx.dex(
-                                dexItem.getSdkPath(),
-                                dexItem.getFile().getPath()
-                        );
-                        addMessages(messages);
-                        if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
-                            results.add(dexItem);
+            List<DexJob> jobs = ApplicationManager.getApplication().runReadAction(new Computable<List<DexJob>>() {
+                public List<DexJob> compute() {
+                    List<DexJob> result = new ArrayList<DexJob>(myItems.length);
+                    for (ProcessingItem item : myItems) {
+                        if (item instanceof DexItem) {
+                            DexItem dexItem = (DexItem) item;
+                            result.add(new DexJob(dexItem, dexItem.getFile().getPath(),
+                                    ParallelCompileExecutor.getThreadCount(dexItem.getModule())));
                         }
-                    } catch (IOException e) {
-                        myContext.addMessage(CompilerMessageCategory.ERROR, e.getMessage(), null, -1, -1);
                     }
+                    return result;
+                }
+            });
+
+            List<AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>> tasks =
+                    new ArrayList<AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>>(jobs.size());
+            for (final DexJob job : jobs) {
+                tasks.add(new AndroidBuildScheduler.ModuleTask<Map<CompilerMessageCategory, List<String>>>(job.myItem.getModule(),
+                        new Callable<Map<CompilerMessageCategory, List<String>>>() {
+                            public Map<CompilerMessageCategory, List<String>> call() throws IOException {
+                                return dex(job);
+                            }
+                        }));
+            }
+            List<ProcessingItem> results = new ArrayList<ProcessingItem>(jobs.size());
+            AndroidBuildScheduler scheduler = AndroidBuildScheduler.getInstance(myContext);
+            List<Future<Map<CompilerMessageCategory, List<String>>>> futures =
+                    scheduler.run(myContext, AndroidBuildScheduler.Stage.DEX, tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    Map<CompilerMessageCategory, List<String>> messages = futures.get(i).get();
+                    AndroidCompileUtil.addMessages(myContext, messages);
+                    if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                        results.add(jobs.get(i).myItem);
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    myContext.addMessage(CompilerMessageCategory.ERROR, cause.getMessage(), null, -1, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
             return results.toArray(new ProcessingItem[results.size()]);
         }
 
-        private void addMessages(Map<CompilerMessageCategory, List<String>> messages) {
-            for (CompilerMessageCategory category : messages.keySet()) {
-                List<String> messageList = messages.get(category);
-                for (String message : messageList) {
-                    myContext.addMessage(category, message, null, -1, -1);
+        private static Map<CompilerMessageCategory, List<String>> dex(DexJob job) throws IOException {
+            DexItem dexItem = job.myItem;
+            Map<CompilerMessageCategory, List<String>> messages;
+            File classesDex = new File(job.myOutputPath, AndroidManager.CLASSES_FILE_NAME);
+            long lastModified = classesDex.lastModified();
+            if (dexItem.isIncremental() && IncrementalDexBuilder.isSupported(dexItem.getSdkPath())) {
+                IncrementalDexBuilder builder = new IncrementalDexBuilder(dexItem.getSdkPath(),
+                        new File(job.myOutputPath), dexItem.getLibraryJars(), dexItem.getDxOptions(), dexItem.isInProcess());
+                messages = builder.build(job.myThreads);
+            } else if (dexItem.getLibraryJars().isEmpty()) {
+                messages = AndroidDx.dex(
+                        dexItem.getSdkPath(),
+                        job.myOutputPath,
+                        dexItem.getDxOptions(),
+                        dexItem.isInProcess()
+                );
+            } else if (AndroidDx.isMergeSupported(dexItem.getSdkPath())) {
+                messages = dexWithLibraries(dexItem, classesDex);
+            } else {
+                // without the merger libraries can't be pre-dexed, dx converts them with the classes
+                List<String> inputs = new ArrayList<String>();
+                inputs.add(job.myOutputPath);
+                inputs.addAll(dexItem.getLibraryJars());
+                messages = AndroidDx.dexFiles(dexItem.getSdkPath(), classesDex.getPath(), inputs, dexItem.getDxOptions(),
+                        dexItem.isInProcess());
+            }
+            BuildTrace.addOutput(classesDex, lastModified);
+            return messages;
+        }
+
+        /**
+         * Dexes the classes of the output directory, takes the dex files of the libraries from the {@link PreDexCache}
+         * and merges them all into classes.dex.
+         */
+        private static Map<CompilerMessageCategory, List<String>> dexWithLibraries(DexItem dexItem, File classesDex)
+                throws IOException {
+            String sdkPath = dexItem.getSdkPath();
+            Map<CompilerMessageCategory, List<String>> messages = AndroidDx.dex(sdkPath, classesDex.getParent(),
+                    dexItem.getDxOptions(), dexItem.isInProcess());
+            if (!messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                return messages;
+            }
+            File tempDir = FileUtil.createTempDirectory("android", "dex");
+            try {
+                List<String> dexFiles = new ArrayList<String>();
+                dexFiles.add(classesDex.getPath());
+                List<String> libraryJars = dexItem.getLibraryJars();
+                for (int i = 0; i < libraryJars.size(); i++) {
+                    File libraryDex = new File(tempDir, i + ".dex");
+                    messages = PreDexCache.getInstance().dex(sdkPath, new File(libraryJars.get(i)), libraryDex,
+                            dexItem.getDxOptions(), dexItem.isInProcess());
+                    if (!messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                        return messages;
+                    }
+                    dexFiles.add(libraryDex.getPath());
                 }
+                File merged = new File(tempDir, AndroidManager.CLASSES_FILE_NAME);
+                messages = AndroidDx.merge(sdkPath, merged.getPath(), dexFiles, dexItem.getDxOptions(), dexItem.isInProcess());
+                if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                    FileUtil.copy(merged, classesDex);
+                }
+                return messages;
+            } finally {
+                FileUtil.delete(tempDir);
             }
         }
     }
 
+    /**
+     * Snapshot of what dexing an item needs from the project model.
+     */
+    private final static class DexJob {
+        private final DexItem myItem;
+        private final String myOutputPath;
+        private final int myThreads;
+
+        private DexJob(DexItem item, String outputPath, int threads) {
+            myItem = item;
+            myOutputPath = outputPath;
+            myThreads = threads;
+        }
+    }
+
     private final static class DexItem implements ProcessingItem {
         private final Module myModule;
         private final VirtualFile myOutputPath;
         private final String mySdkPath;
+        private final List<String> myLibraryJars;
+        private final boolean myIncremental;
+        private final DxOptions myDxOptions;
+        private final boolean myInProcess;
 
-        public DexItem(Module module, VirtualFile outputPath, String sdkPath) {
+        public DexItem(Module module, VirtualFile outputPath, String sdkPath, List<String> libraryJars, boolean incremental,
+                       DxOptions dxOptions, boolean inProcess) {
             myModule = module;
             myOutputPath = outputPath;
             mySdkPath = sdkPath;
+            myLibraryJars = libraryJars;
+            myIncremental = incremental;
+            myDxOptions = dxOptions;
+            myInProcess = inProcess;
         }
 
         @NotNull
@@ -140,13 +305,30 @@ public class AndroidDexCompiler implements ClassPostProcessingCompiler {
 
         @Nullable
         public ValidityState getValidityState() {
-            return new EmptyValidityState();
+            return new ClassesValidityState(new File(myOutputPath.getPath()), myLibraryJars,
+                    AndroidDx.getDexOptions(myDxOptions));
         }
 
         public String getSdkPath() {
             return mySdkPath;
         }
 
+        public List<String> getLibraryJars() {
+            return myLibraryJars;
+        }
+
+        public boolean isIncremental() {
+            return myIncremental;
+        }
+
+        public DxOptions getDxOptions() {
+            return myDxOptions;
+        }
+
+        public boolean isInProcess() {
+            return myInProcess;
+        }
+
         public Module getModule() {
             return myModule;
         }
@@ -7,12 +7,15 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.compiler.*;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.android.compiler.tools.AndroidIdl;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.android.compiler.tools.ExternalCompilerTool;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.fileTypes.AndroidIdlFileType;
 import org.jetbrains.annotations.NotNull;
@@ -20,9 +23,10 @@ import org.jetbrains.annotations.NotNull;
 import java.io.DataInput;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Android IDL compiler.
@@ -49,8 +53,13 @@ public class AndroidIdlCompiler implements SourceGeneratingCompiler {
 
     public GenerationItem[] generate(CompileContext context, GenerationItem[] items, VirtualFile outputRootDirectory) {
         if (items != null && items.length > 0) {
-            Application application = ApplicationManager.getApplication();
-            GenerationItem[] generationItems = application.runReadAction(new GenerateAction(context, items));
+            GenerationItem[] generationItems;
+            ExternalCompilerTool.setOutputListener(AndroidCompileUtil.createProgressListener(context));
+            try {
+                generationItems = new GenerateAction(context, items).compute();
+            } finally {
+                ExternalCompilerTool.setOutputListener(null);
+            }
             for (GenerationItem item : generationItems) {
                 File generatedFile = ((IdlGenerationItem) item).getGeneratedFile();
                 if (generatedFile != null) {
@@ -72,7 +81,7 @@ public class AndroidIdlCompiler implements SourceGeneratingCompiler {
     }
 
     public ValidityState createValidityState(DataInput is) throws IOException {
-        return null;
+        return new AidlValidityState(is);
     }
 
     private final static class IdlGenerationItem implements GenerationItem {
@@ -81,25 +90,34 @@ public class AndroidIdlCompiler implements SourceGeneratingCompiler {
         private final boolean myTestSource;
         private final String mySdkPath;
         private final File myGeneratedFile;
+        private final String myPath;
+        private final AidlValidityState.Dependencies myDependencies;
 
-        public IdlGenerationItem(Module module, VirtualFile file, boolean testSource, String sdkPath) {
+        public IdlGenerationItem(Module module, VirtualFile file, boolean testSource, String sdkPath, String packageName,
+                                 AidlValidityState.Dependencies dependencies) {
             myModule = module;
             myFile = file;
             myTestSource = testSource;
             mySdkPath = sdkPath;
+            myDependencies = dependencies;
             myGeneratedFile = new File(VfsUtil.virtualToIoFile(file.getParent()), file.getNameWithoutExtension() + ".java");
+            String fileName = file.getNameWithoutExtension() + ".java";
+            myPath = packageName != null && packageName.length() > 0 ? packageName.replace('.', '/') + '/' + fileName : fileName;
         }
 
         public VirtualFile getFile() {
             return myFile;
         }
 
+        /**
+         * Path of the generated file relative to its source root, it identifies the item in the compiler caches.
+         */
         public String getPath() {
-            return null;
+            return myPath;
         }
 
         public ValidityState getValidityState() {
-            return null;
+            return new AidlValidityState(myDependencies, myGeneratedFile.exists());
         }
 
         public Module getModule() {
@@ -132,29 +150,56 @@ public class AndroidIdlCompiler implements SourceGeneratingCompiler {
             VirtualFile[] files = compileScope.getFiles(AndroidIdlFileType.ourFileType, false);
             if (files != null) {
                 List<GenerationItem> items = new ArrayList<GenerationItem>(files.length);
+                Map<Module, VirtualFile[]> moduleSourceRoots = new HashMap<Module, VirtualFile[]>();
                 for (VirtualFile file : files) {
                     Module module = myContext.getModuleByFile(file);
                     AndroidFacet facet = FacetManager.getInstance(module).getFacetByType(AndroidFacet.ID);
                     if (facet != null) {
                         String sdkPath = facet.getConfiguration().getSdkPath();
-                        IdlGenerationItem generationItem = new IdlGenerationItem(module, file, fileIndex.isInTestSourceContent(file), sdkPath);
-                        if (myContext.isMake()) {
-                            File generatedFile = generationItem.getGeneratedFile();
-                            if (generatedFile == null || !generatedFile.exists() || generatedFile.lastModified() <= file.getModificationStamp()) {
-                                items.add(generationItem);
-                            }
-                        } else {
-                            items.add(generationItem);
+                        VirtualFile[] sourceRoots = moduleSourceRoots.get(module);
+                        if (sourceRoots == null) {
+                            sourceRoots = getImportSourceRoots(module);
+                            moduleSourceRoots.put(module, sourceRoots);
                         }
+                        String packageName = fileIndex.getPackageNameByDirectory(file.getParent());
+                        // up-to-date items are filtered out by comparing validity states
+                        items.add(new IdlGenerationItem(module, file, fileIndex.isInTestSourceContent(file), sdkPath,
+                                packageName, new AidlValidityState.Dependencies(file, sourceRoots)));
                     }
                 }
                 return items.toArray(new GenerationItem[items.size()]);
             }
             return EMPTY_GENERATION_ITEM_ARRAY;
         }
+
+        /**
+         * Returns the source roots imports of the module's .aidl files may come from: the module's own ones first,
+         * then the ones of the modules it depends on, transitively.
+         */
+        private VirtualFile[] getImportSourceRoots(Module module) {
+            Set<Module> modules = new LinkedHashSet<Module>();
+            collectModules(module, modules);
+            List<VirtualFile> result = new ArrayList<VirtualFile>();
+            for (Module sourceModule : modules) {
+                result.addAll(Arrays.asList(ModuleRootManager.getInstance(sourceModule).getSourceRoots()));
+            }
+            return result.toArray(new VirtualFile[result.size()]);
+        }
+
+        private void collectModules(Module module, Set<Module> result) {
+            if (result.add(module)) {
+                for (Module dependency : ModuleRootManager.getInstance(module).getDependencies()) {
+                    collectModules(dependency, result);
+                }
+            }
+        }
     }
 
-    private static final class GenerateAction implements Computable<GenerationItem[]> {
+    /**
+     * Runs aidl for the items outside of a read action. Items are grouped by module and SDK path, and every group is
+     * split into batches which are processed on a bounded pool; messages are reported per file in the items order.
+     */
+    private static final class GenerateAction {
         private final CompileContext myContext;
         private final GenerationItem[] myItems;
 
@@ -164,34 +209,88 @@ public class AndroidIdlCompiler implements SourceGeneratingCompiler {
         }
 
         public GenerationItem[] compute() {
-            List<GenerationItem> results = new ArrayList<GenerationItem>(myItems.length);
+            Map<String, List<IdlGenerationItem>> groups = new LinkedHashMap<String, List<IdlGenerationItem>>();
+            Set<Module> modules = new HashSet<Module>();
             for (GenerationItem item : myItems) {
                 if (item instanceof IdlGenerationItem) {
                     IdlGenerationItem idlItem = (IdlGenerationItem) item;
-                    try {
-                        Map<CompilerMessageCategory, List<String>> messages = AndroidIdl.execute(
-                                idlItem.getSdkPath(),
-                                idlItem.getFile().getPath()
-                        );
-                        addMessages(messages, idlItem.getFile().getUrl());
-                        if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
-                            results.add(idlItem);
+                    String key = idlItem.getModule().getName() + '\n' + idlItem.getSdkPath();
+                    List<IdlGenerationItem> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<IdlGenerationItem>();
+                        groups.put(key, group);
+                    }
+                    group.add(idlItem);
+                    modules.add(idlItem.getModule());
+                }
+            }
+            int threads = ParallelCompileExecutor.getThreadCount(modules.toArray(new Module[modules.size()]));
+            List<AndroidBuildScheduler.ModuleTask<List<IdlResult>>> tasks =
+                    new ArrayList<AndroidBuildScheduler.ModuleTask<List<IdlResult>>>();
+            for (List<IdlGenerationItem> group : groups.values()) {
+                int batchSize = (group.size() + threads - 1) / threads;
+                for (int i = 0; i < group.size(); i += batchSize) {
+                    final List<IdlGenerationItem> batch = group.subList(i, Math.min(group.size(), i + batchSize));
+                    tasks.add(new AndroidBuildScheduler.ModuleTask<List<IdlResult>>(batch.get(0).getModule(),
+                            new Callable<List<IdlResult>>() {
+                                public List<IdlResult> call() {
+                                    List<IdlResult> results = new ArrayList<IdlResult>(batch.size());
+                                    for (IdlGenerationItem item : batch) {
+                                        results.add(execute(item));
+                                    }
+                                    return results;
+                                }
+                            }));
+                }
+            }
+
+            List<GenerationItem> results = new ArrayList<GenerationItem>(myItems.length);
+            AndroidBuildScheduler scheduler = AndroidBuildScheduler.getInstance(myContext);
+            for (Future<List<IdlResult>> future : scheduler.run(myContext, AndroidBuildScheduler.Stage.AIDL, tasks)) {
+                try {
+                    for (IdlResult result : future.get()) {
+                        String url = result.myItem.getFile().getUrl();
+                        if (result.myException != null) {
+                            myContext.addMessage(CompilerMessageCategory.ERROR, result.myException.getMessage(), url, -1, -1);
+                        } else {
+                            AndroidCompileUtil.addMessages(myContext, result.myMessages, url);
+                            if (result.myMessages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                                results.add(result.myItem);
+                            }
                         }
-                    } catch (IOException e) {
-                        myContext.addMessage(CompilerMessageCategory.ERROR, e.getMessage(), idlItem.getFile().getUrl(), -1, -1);
                     }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    myContext.addMessage(CompilerMessageCategory.ERROR, cause.getMessage(), null, -1, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
             return results.toArray(new GenerationItem[results.size()]);
         }
 
-        private void addMessages(Map<CompilerMessageCategory, List<String>> messages, String url) {
-            for (CompilerMessageCategory category : messages.keySet()) {
-                List<String> messageList = messages.get(category);
-                for (String message : messageList) {
-                    myContext.addMessage(category, message, url, -1, -1);
-                }
+        private static IdlResult execute(IdlGenerationItem item) {
+            try {
+                Map<CompilerMessageCategory, List<String>> messages =
+                        AndroidIdl.execute(item.getSdkPath(), item.getFile().getPath());
+                BuildTrace.addOutput(item.getGeneratedFile());
+                return new IdlResult(item, messages, null);
+            } catch (IOException e) {
+                return new IdlResult(item, null, e);
             }
         }
     }
+
+    private static final class IdlResult {
+        private final IdlGenerationItem myItem;
+        private final Map<CompilerMessageCategory, List<String>> myMessages;
+        private final IOException myException;
+
+        private IdlResult(IdlGenerationItem item, Map<CompilerMessageCategory, List<String>> messages, IOException exception) {
+            myItem = item;
+            myMessages = messages;
+            myException = exception;
+        }
+    }
 }
\ No newline at end of file
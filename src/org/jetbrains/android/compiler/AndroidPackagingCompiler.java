@@ -1,27 +1,39 @@
 package org.jetbrains.android.compiler;
 
 import com.intellij.openapi.compiler.*;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.android.AndroidManager;
 import org.jetbrains.android.compiler.tools.AndroidApkBuilder;
 import org.jetbrains.android.compiler.tools.AndroidApt;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.android.compiler.tools.ExternalCompilerTool;
+import org.jetbrains.android.compiler.tools.ToolMetrics;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.facet.AndroidFacetConfiguration;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author yole
  */
 public class AndroidPackagingCompiler implements PackagingCompiler {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.AndroidPackagingCompiler");
+
+    /**
+     * Suffix of the file next to the resource package which holds the state of the resources it was built from.
+     */
+    private static final String RESOURCES_STATE_SUFFIX = ".state";
 
     public void processOutdatedItem(CompileContext context, String url, @Nullable ValidityState state) {
     }
@@ -42,7 +54,7 @@ public class AndroidPackagingCompiler implements PackagingCompiler {
                     String outputPath = new File(outputDir.getPath(), module.getName() + ".apk").getPath();
                     String classesDexPath = new File(outputDir.getPath(), AndroidManager.CLASSES_FILE_NAME).getPath();
                     items.add(new AptPackagingItem(module, manifestFile, configuration.getSdkPath(), resourcesDir.getPath(),
-                            tempOutputPath, outputPath, classesDexPath));
+                            tempOutputPath, outputPath, classesDexPath, new ResourcesValidityState(module, false)));
                 }
             }
         }
@@ -52,27 +64,164 @@ public class AndroidPackagingCompiler implements PackagingCompiler {
     public ProcessingItem[] process(CompileContext context, ProcessingItem[] items) {
         context.getProgressIndicator().setText("Building Android package...");
         final List<ProcessingItem> result = new ArrayList<ProcessingItem>();
-        for(ProcessingItem processingItem: items) {
-            AptPackagingItem item = (AptPackagingItem) processingItem;
-            String rootDir = item.getFile().getParent().getPath();
+        ExternalCompilerTool.setOutputListener(AndroidCompileUtil.createProgressListener(context));
+        try {
+            processItems(context, items, result);
+        } finally {
+            ExternalCompilerTool.setOutputListener(null);
+        }
+        ResourceDigestCache.getInstance().save();
+        for (String line : ToolMetrics.getInstance().drainSummary()) {
+            context.addMessage(CompilerMessageCategory.STATISTICS, line, null, -1, -1);
+        }
+        return result.toArray(new ProcessingItem[result.size()]);
+    }
+
+    private static void processItems(CompileContext context, ProcessingItem[] items, List<ProcessingItem> result) {
+        List<AptPackagingItem> packagingItems = new ArrayList<AptPackagingItem>(items.length);
+        List<AndroidBuildScheduler.ModuleTask<List<Map<CompilerMessageCategory, List<String>>>>> tasks =
+                new ArrayList<AndroidBuildScheduler.ModuleTask<List<Map<CompilerMessageCategory, List<String>>>>>(items.length);
+        for (ProcessingItem processingItem : items) {
+            final AptPackagingItem item = (AptPackagingItem) processingItem;
+            packagingItems.add(item);
+            tasks.add(new AndroidBuildScheduler.ModuleTask<List<Map<CompilerMessageCategory, List<String>>>>(item.getModule(),
+                    new Callable<List<Map<CompilerMessageCategory, List<String>>>>() {
+                        public List<Map<CompilerMessageCategory, List<String>>> call() throws IOException {
+                            return packageItem(item);
+                        }
+                    }));
+        }
+        AndroidBuildScheduler scheduler = AndroidBuildScheduler.getInstance(context);
+        List<Future<List<Map<CompilerMessageCategory, List<String>>>>> futures =
+                scheduler.run(context, AndroidBuildScheduler.Stage.PACKAGE, tasks);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                boolean failed = false;
+                for (Map<CompilerMessageCategory, List<String>> messages : futures.get(i).get()) {
+                    AndroidCompileUtil.addMessages(context, messages);
+                    failed |= !messages.get(CompilerMessageCategory.ERROR).isEmpty();
+                }
+                if (!failed) {
+                    result.add(packagingItems.get(i));
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                context.addMessage(CompilerMessageCategory.ERROR, cause.getMessage(), null, -1, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs aapt and apkbuilder for the item as far as needed and returns their messages.
+     */
+    private static List<Map<CompilerMessageCategory, List<String>>> packageItem(AptPackagingItem item) throws IOException {
+        List<Map<CompilerMessageCategory, List<String>>> result = new ArrayList<Map<CompilerMessageCategory, List<String>>>(2);
+        String rootDir = item.getFile().getParent().getPath();
+        boolean resourcesPackaged = false;
+        RJavaWriter rJavaWriter = RJavaWriter.getInstance();
+        boolean verifyRJava = rJavaWriter.needsVerification(item.getModule());
+        if (verifyRJava || !isResourcePackageUpToDate(item)) {
+            File rJavaDir = verifyRJava ? FileUtil.createTempDirectory("android", "r") : null;
+            Map<CompilerMessageCategory,List<String>> messages;
             try {
-                Map<CompilerMessageCategory,List<String>> messages = AndroidApt.packageResources(rootDir,
-                        item.getSdkPath(), item.getResourcesPath(), item.getOutputPath());
-                AndroidCompileUtil.addMessages(context, messages);
-                if (messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
-                    final Map<CompilerMessageCategory, List<String>> apkuBuilderMessages =
-                            AndroidApkBuilder.execute(item.getSdkPath(), item.getOutputPath(),
-                                    item.getClassesDexPath(), item.getFinalPath());
-                    AndroidCompileUtil.addMessages(context, apkuBuilderMessages);
+                messages = AndroidApt.packageResources(rootDir, item.getSdkPath(), item.getResourcesPath(),
+                        item.getOutputPath(), rJavaDir != null ? rJavaDir.getPath() : null);
+                if (rJavaDir != null && messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                    File aaptRJava = findRJava(rJavaDir);
+                    String error = aaptRJava != null ? rJavaWriter.verify(item.getModule(), aaptRJava) : null;
+                    if (error != null) {
+                        messages.get(CompilerMessageCategory.ERROR).add(error);
+                    }
+                }
+            } finally {
+                if (rJavaDir != null) {
+                    FileUtil.delete(rJavaDir);
                 }
-            } catch (IOException e) {
-                context.addMessage(CompilerMessageCategory.ERROR, e.getMessage(), null, -1, -1);
             }
-            if (context.getMessages(CompilerMessageCategory.ERROR).length == 0) {
-                result.add(item);
+            result.add(messages);
+            if (!messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                return result;
             }
+            BuildTrace.addOutput(new File(item.getOutputPath()));
+            saveResourcePackageState(item);
+            resourcesPackaged = true;
         }
-        return result.toArray(new ProcessingItem[result.size()]);
+        if (resourcesPackaged || !isFinalPackageUpToDate(item)) {
+            result.add(AndroidApkBuilder.execute(item.getSdkPath(), item.getOutputPath(), item.getClassesDexPath(),
+                    item.getFinalPath()));
+            BuildTrace.addOutput(new File(item.getFinalPath()));
+        }
+        return result;
+    }
+
+    @Nullable
+    private static File findRJava(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) return null;
+        for (File child : children) {
+            File rJava = child.isDirectory() ? findRJava(child) : "R.java".equals(child.getName()) ? child : null;
+            if (rJava != null) {
+                return rJava;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The resource package produced by aapt is reused if the resources, the manifest and the platform jar are the same
+     * as the ones it was built from, so a change of classes only makes apkbuilder merge the new classes.dex into it.
+     */
+    private static boolean isResourcePackageUpToDate(AptPackagingItem item) {
+        File resourcePackage = new File(item.getOutputPath());
+        File stateFile = new File(item.getOutputPath() + RESOURCES_STATE_SUFFIX);
+        if (!resourcePackage.isFile() || !stateFile.isFile()) {
+            return false;
+        }
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (!item.getResourcesState().equalsTo(new ResourcesValidityState(is))) {
+                    return false;
+                }
+                File platformJar = new File(AndroidApt.buildJarPath(item.getSdkPath()));
+                return platformJar.getPath().equals(is.readUTF()) && platformJar.lastModified() == is.readLong() &&
+                        platformJar.length() == is.readLong();
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            LOG.info(e);
+            return false;
+        }
+    }
+
+    private static void saveResourcePackageState(AptPackagingItem item) {
+        File stateFile = new File(item.getOutputPath() + RESOURCES_STATE_SUFFIX);
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)));
+            try {
+                item.getResourcesState().save(os);
+                File platformJar = new File(AndroidApt.buildJarPath(item.getSdkPath()));
+                os.writeUTF(platformJar.getPath());
+                os.writeLong(platformJar.lastModified());
+                os.writeLong(platformJar.length());
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            LOG.info(e);
+            FileUtil.delete(stateFile);
+        }
+    }
+
+    private static boolean isFinalPackageUpToDate(AptPackagingItem item) {
+        File finalPackage = new File(item.getFinalPath());
+        long timestamp = finalPackage.lastModified();
+        return finalPackage.isFile() && timestamp >= new File(item.getOutputPath()).lastModified() &&
+                timestamp >= new File(item.getClassesDexPath()).lastModified();
     }
 
     @NotNull
@@ -96,9 +245,10 @@ public class AndroidPackagingCompiler implements PackagingCompiler {
         private String myOutputPath;
         private String myFinalPath;
         private String myClassesDexPath;
+        private ResourcesValidityState myResourcesState;
 
         private AptPackagingItem(Module module, VirtualFile file, String sdkPath, String resourcesPath, String outputPath,
-                                 String finalPath, String classesDexPath) {
+                                 String finalPath, String classesDexPath, ResourcesValidityState resourcesState) {
             myModule = module;
             myFile = file;
             mySdkPath = sdkPath;
@@ -106,6 +256,7 @@ public class AndroidPackagingCompiler implements PackagingCompiler {
             myOutputPath = outputPath;
             myFinalPath = finalPath;
             myClassesDexPath = classesDexPath;
+            myResourcesState = resourcesState;
         }
 
         @NotNull
@@ -137,5 +288,16 @@ public class AndroidPackagingCompiler implements PackagingCompiler {
         public String getClassesDexPath() {
             return myClassesDexPath;
         }
+
+        /**
+         * State of the resources only, without classes.dex.
+         */
+        public ResourcesValidityState getResourcesState() {
+            return myResourcesState;
+        }
+
+        public Module getModule() {
+            return myModule;
+        }
     }
 }
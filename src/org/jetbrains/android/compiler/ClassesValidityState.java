@@ -0,0 +1,93 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.compiler.ValidityState;
+import org.jetbrains.annotations.NonNls;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * State of the class files and jars in a module output directory, of the library jars dexed with them and of the dx
+ * options which affect the dex file, used to skip dx for unchanged modules.
+ *
+ * @author yole
+ */
+public class ClassesValidityState implements ValidityState {
+    @NonNls
+    private static final String LIBRARY_PREFIX = "lib:";
+
+    private final String[] myPaths;
+    private final long[] myTimestamps;
+    private final String myDexOptions;
+
+    public ClassesValidityState(File outputDir, List<String> libraryJars, String dexOptions) {
+        myDexOptions = dexOptions;
+        Map<String, Long> files = new TreeMap<String, Long>();
+        collectClassFiles(outputDir, "", files);
+        for (String jar : libraryJars) {
+            // paths of the output directory are relative and start with a slash
+            files.put(LIBRARY_PREFIX + jar, new File(jar).lastModified());
+        }
+        myPaths = files.keySet().toArray(new String[files.size()]);
+        myTimestamps = new long[myPaths.length];
+        int i = 0;
+        for (Long timestamp : files.values()) {
+            myTimestamps[i++] = timestamp;
+        }
+    }
+
+    private static void collectClassFiles(File dir, String relativePath, Map<String, Long> files) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            String path = relativePath + "/" + child.getName();
+            if (child.isDirectory()) {
+                if (!IncrementalDexBuilder.CACHE_DIR_NAME.equals(child.getName()) || relativePath.length() > 0) {
+                    collectClassFiles(child, path, files);
+                }
+            }
+            else if (isDexInput(child.getName())) {
+                files.put(path, child.lastModified());
+            }
+        }
+    }
+
+    static boolean isDexInput(String fileName) {
+        return fileName.endsWith(".class") || fileName.endsWith(".jar");
+    }
+
+    public ClassesValidityState(DataInput is) throws IOException {
+        int count = is.readInt();
+        myPaths = new String[count];
+        myTimestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            myPaths[i] = is.readUTF();
+            myTimestamps[i] = is.readLong();
+        }
+        myDexOptions = is.readUTF();
+    }
+
+    public boolean equalsTo(ValidityState otherState) {
+        if (!(otherState instanceof ClassesValidityState)) {
+            return false;
+        }
+        ClassesValidityState rhs = (ClassesValidityState) otherState;
+        return Arrays.equals(myTimestamps, rhs.myTimestamps) && Arrays.equals(myPaths, rhs.myPaths) &&
+                myDexOptions.equals(rhs.myDexOptions);
+    }
+
+    public void save(DataOutput os) throws IOException {
+        os.writeInt(myPaths.length);
+        for (int i = 0; i < myPaths.length; i++) {
+            os.writeUTF(myPaths[i]);
+            os.writeLong(myTimestamps[i]);
+        }
+        os.writeUTF(myDexOptions);
+    }
+}
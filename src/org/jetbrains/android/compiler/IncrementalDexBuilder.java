@@ -0,0 +1,262 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.android.AndroidManager;
+import org.jetbrains.android.compiler.tools.AndroidDx;
+import org.jetbrains.android.compiler.tools.DxOptions;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Dexes a module output directory incrementally. Every package directory and every jar of the output directory is a
+ * unit which is dexed into its own intermediate file in {@link #CACHE_DIR_NAME}; only units whose classes changed are
+ * passed to dx again. Jars of the output directory and the library jars of the module are dexed through the
+ * {@link PreDexCache}, so a library is dexed once for all modules. The intermediates are then merged into classes.dex.
+ * <p/>
+ * Next to every intermediate a stamp file keeps a digest of the dx options and of the paths, sizes and modification
+ * times of the inputs it was built from. A unit is stale when the digest differs, which unlike comparing timestamps
+ * also catches a change in the same timestamp tick as the intermediate was written, and classes added or deleted.
+ *
+ * @author Alexey Efimov
+ */
+final class IncrementalDexBuilder {
+    @NonNls
+    static final String CACHE_DIR_NAME = "dex-cache";
+    @NonNls
+    private static final String DEX_EXTENSION = ".dex";
+    @NonNls
+    private static final String STAMP_EXTENSION = ".stamp";
+    @NonNls
+    private static final String STAMP_ALGORITHM = "MD5";
+
+    private final String mySdkPath;
+    private final File myOutputDir;
+    private final File myCacheDir;
+    private final List<String> myLibraryJars;
+    private final DxOptions myOptions;
+    private final boolean myInProcess;
+
+    IncrementalDexBuilder(@NotNull String sdkPath, @NotNull File outputDir, @NotNull List<String> libraryJars,
+                          @NotNull DxOptions options, boolean inProcess) {
+        mySdkPath = sdkPath;
+        myOutputDir = outputDir;
+        myLibraryJars = libraryJars;
+        myOptions = options;
+        myInProcess = inProcess;
+        myCacheDir = new File(outputDir, CACHE_DIR_NAME);
+    }
+
+    static boolean isSupported(String sdkPath) {
+        return AndroidDx.isMergeSupported(sdkPath);
+    }
+
+    @NotNull
+    Map<CompilerMessageCategory, List<String>> build(int threads) throws IOException {
+        if (!myCacheDir.isDirectory() && !myCacheDir.mkdirs()) {
+            throw new IOException("Cannot create directory " + myCacheDir.getPath());
+        }
+        List<DexUnit> units = new ArrayList<DexUnit>();
+        collectUnits(myOutputDir, "", units);
+        for (String jar : myLibraryJars) {
+            // the name of a library jar isn't unique, its path is
+            String name = "lib-" + new File(jar).getName() + "-" + Integer.toHexString(jar.hashCode());
+            List<String> inputs = Collections.singletonList(jar);
+            units.add(new DexUnit(inputs, true, getStamp(inputs), new File(myCacheDir, name + DEX_EXTENSION)));
+        }
+        boolean changed = removeObsoleteIntermediates(units);
+
+        final List<DexUnit> staleUnits = new ArrayList<DexUnit>();
+        List<Callable<Map<CompilerMessageCategory, List<String>>>> tasks =
+                new ArrayList<Callable<Map<CompilerMessageCategory, List<String>>>>();
+        for (final DexUnit unit : units) {
+            if (unit.isUpToDate()) continue;
+            staleUnits.add(unit);
+            tasks.add(new Callable<Map<CompilerMessageCategory, List<String>>>() {
+                public Map<CompilerMessageCategory, List<String>> call() throws IOException {
+                    if (unit.myJar) {
+                        return PreDexCache.getInstance().dex(mySdkPath, new File(unit.myInputs.get(0)), unit.myIntermediate,
+                                myOptions, myInProcess);
+                    }
+                    return AndroidDx.dexFiles(mySdkPath, unit.myIntermediate.getPath(), unit.myInputs, myOptions, myInProcess);
+                }
+            });
+        }
+
+        Map<CompilerMessageCategory, List<String>> messages = AndroidCompileUtil.createMessages();
+        // run by the dx stage, units share the stage's slots with the other modules instead of using a pool of their own
+        List<Future<Map<CompilerMessageCategory, List<String>>>> futures = ParallelCompileExecutor.invokeAll(tasks, threads);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                appendMessages(messages, futures.get(i).get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                messages.get(CompilerMessageCategory.ERROR).add(cause.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!messages.get(CompilerMessageCategory.ERROR).isEmpty() || futures.size() < tasks.size()) {
+            // don't keep half-written intermediates of failed units
+            for (DexUnit unit : staleUnits) {
+                FileUtil.delete(unit.myIntermediate);
+                FileUtil.delete(unit.getStampFile());
+            }
+            return messages;
+        }
+        for (DexUnit unit : staleUnits) {
+            FileUtil.writeToFile(unit.getStampFile(), unit.myStamp);
+        }
+
+        File classesDex = new File(myOutputDir, AndroidManager.CLASSES_FILE_NAME);
+        if (changed || !staleUnits.isEmpty() || !classesDex.exists()) {
+            appendMessages(messages, merge(units, classesDex));
+        }
+        return messages;
+    }
+
+    @NotNull
+    private Map<CompilerMessageCategory, List<String>> merge(List<DexUnit> units, File classesDex) throws IOException {
+        List<String> intermediates = new ArrayList<String>(units.size());
+        List<String> inputs = new ArrayList<String>();
+        for (DexUnit unit : units) {
+            intermediates.add(unit.myIntermediate.getPath());
+            inputs.addAll(unit.myInputs);
+        }
+        if (intermediates.isEmpty()) {
+            FileUtil.delete(classesDex);
+            return AndroidCompileUtil.createMessages();
+        }
+        if (intermediates.size() == 1) {
+            FileUtil.copy(units.get(0).myIntermediate, classesDex);
+            return AndroidCompileUtil.createMessages();
+        }
+        // the merger needs as much memory as dexing all the classes at once
+        DxOptions options = myOptions.resolve(myOptions.isAuto() ? AndroidDx.countClasses(inputs) : 0);
+        return AndroidDx.merge(mySdkPath, classesDex.getPath(), intermediates, options, myInProcess);
+    }
+
+    private void collectUnits(File dir, String relativePath, List<DexUnit> units) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        List<String> classFiles = new ArrayList<String>();
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                if (relativePath.length() > 0 || !CACHE_DIR_NAME.equals(name)) {
+                    collectUnits(child, relativePath + name + "/", units);
+                }
+            }
+            else if (name.endsWith(".class")) {
+                classFiles.add(child.getPath());
+            }
+            else if (name.endsWith(".jar")) {
+                File intermediate = new File(myCacheDir, "jar-" + toUnitName(relativePath + name) + DEX_EXTENSION);
+                List<String> inputs = Collections.singletonList(child.getPath());
+                units.add(new DexUnit(inputs, true, getStamp(inputs), intermediate));
+            }
+        }
+        if (!classFiles.isEmpty()) {
+            String unitName = relativePath.length() > 0 ? toUnitName(relativePath) : "_default";
+            // sort to pass classes to dx in a stable order
+            Collections.sort(classFiles);
+            units.add(new DexUnit(classFiles, false, getStamp(classFiles), new File(myCacheDir, unitName + DEX_EXTENSION)));
+        }
+    }
+
+    /**
+     * Returns the digest of the paths, sizes and modification times of the inputs and of dx.jar, and of the dx options
+     * which affect the intermediate.
+     */
+    private byte[] getStamp(List<String> inputs) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(STAMP_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        digest.update((AndroidDx.getDexOptions(myOptions) + '\n').getBytes("UTF-8"));
+        List<String> files = new ArrayList<String>(inputs);
+        files.add(AndroidDx.getDxJarPath(mySdkPath));
+        for (String path : files) {
+            File file = new File(path);
+            digest.update((path + '\n' + file.length() + '\n' + file.lastModified() + '\n').getBytes("UTF-8"));
+        }
+        return digest.digest();
+    }
+
+    private static String toUnitName(String relativePath) {
+        String name = relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1) : relativePath;
+        return name.replace('/', '.');
+    }
+
+    /**
+     * Deletes intermediates of units which don't exist anymore; returns true if something was deleted.
+     */
+    private boolean removeObsoleteIntermediates(List<DexUnit> units) {
+        Set<String> names = new HashSet<String>();
+        for (DexUnit unit : units) {
+            names.add(unit.myIntermediate.getName());
+            names.add(unit.getStampFile().getName());
+        }
+        boolean removed = false;
+        File[] files = myCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!names.contains(file.getName())) {
+                    removed |= FileUtil.delete(file);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static void appendMessages(Map<CompilerMessageCategory, List<String>> to, Map<CompilerMessageCategory, List<String>> from) {
+        for (Map.Entry<CompilerMessageCategory, List<String>> entry : from.entrySet()) {
+            List<String> list = to.get(entry.getKey());
+            if (list == null) {
+                list = new ArrayList<String>();
+                to.put(entry.getKey(), list);
+            }
+            list.addAll(entry.getValue());
+        }
+    }
+
+    private static final class DexUnit {
+        private final List<String> myInputs;
+        private final boolean myJar;
+        private final byte[] myStamp;
+        private final File myIntermediate;
+
+        private DexUnit(List<String> inputs, boolean jar, byte[] stamp, File intermediate) {
+            myInputs = inputs;
+            myJar = jar;
+            myStamp = stamp;
+            myIntermediate = intermediate;
+        }
+
+        File getStampFile() {
+            return new File(myIntermediate.getPath() + STAMP_EXTENSION);
+        }
+
+        boolean isUpToDate() {
+            File stampFile = getStampFile();
+            if (!myIntermediate.isFile() || !stampFile.isFile()) return false;
+            try {
+                return Arrays.equals(myStamp, FileUtil.loadFileBytes(stampFile));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.module.Module;
+import org.jetbrains.android.compiler.tools.BuildTrace;
+import org.jetbrains.android.compiler.tools.ExternalCompilerTool;
+import org.jetbrains.android.compiler.tools.ToolOutputListener;
+import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent compile tasks on a bounded worker pool. Results are returned in the order of the submitted
+ * tasks, so callers can replay compiler messages deterministically.
+ * <p/>
+ * Inside a task of a build stage, the stage's slots bound the pool instead, see {@link AndroidBuildScheduler}: the
+ * tasks are run on the calling thread and on as many extra threads as there are idle slots, so nested tasks never
+ * multiply the number of tools running at once.
+ *
+ * @author Alexey Efimov
+ */
+final class ParallelCompileExecutor {
+    private static final ThreadLocal<Semaphore> ourSlots = new ThreadLocal<Semaphore>();
+
+    private ParallelCompileExecutor() {
+    }
+
+    /**
+     * Sets the slots of the build stage the current thread runs a task of, or null when it doesn't.
+     */
+    static void setSlots(Semaphore slots) {
+        ourSlots.set(slots);
+    }
+
+    static Semaphore getSlots() {
+        return ourSlots.get();
+    }
+
+    /**
+     * Returns the pool size for the given modules: the largest {@code BUILD_THREADS} value among their Android facets.
+     */
+    static int getThreadCount(@NotNull Module... modules) {
+        int threads = 1;
+        for (Module module : modules) {
+            AndroidFacet facet = AndroidFacet.getInstance(module);
+            if (facet != null) {
+                threads = Math.max(threads, facet.getConfiguration().getBuildThreads());
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Executes all tasks and waits for them. Each returned future is already done; {@link Future#get()} either returns
+     * the task's value or throws the {@link ExecutionException} wrapping the task's failure. If the calling thread is
+     * interrupted, fewer futures than tasks may be returned.
+     */
+    @NotNull
+    static <T> List<Future<T>> invokeAll(@NotNull List<Callable<T>> tasks, int threads) {
+        Semaphore slots = ourSlots.get();
+        if (slots != null && tasks.size() > 1) {
+            return invokeAll(tasks, slots);
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                FutureTask<T> future = new FutureTask<T>(task);
+                future.run();
+                futures.add(future);
+            }
+            return futures;
+        }
+        List<Callable<T>> workerTasks = new ArrayList<Callable<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            workerTasks.add(propagateThreadContext(task));
+        }
+        ExecutorService executor = createPool(Math.min(threads, tasks.size()));
+        try {
+            futures.addAll(executor.invokeAll(workerTasks));
+        } catch (InterruptedException e) {
+            // compilation was cancelled, results of unfinished tasks are dropped
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return futures;
+    }
+
+    /**
+     * Runs the tasks on the calling thread, which already holds a slot, and on an extra thread for every slot which is
+     * idle now; extra threads give their slots back when there are no tasks left.
+     */
+    @NotNull
+    private static <T> List<Future<T>> invokeAll(@NotNull List<Callable<T>> tasks, @NotNull final Semaphore slots) {
+        final List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<T>(task));
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < futures.size() && !Thread.currentThread().isInterrupted()) {
+                    futures.get(index).run();
+                }
+            }
+        };
+        int helpers = 0;
+        while (helpers < tasks.size() - 1 && slots.tryAcquire()) {
+            helpers++;
+        }
+        ExecutorService executor = helpers > 0 ? createPool(helpers) : null;
+        List<Future<T>> result = new ArrayList<Future<T>>(futures.size());
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.submit(propagateThreadContext(new Callable<Object>() {
+                    public Object call() {
+                        try {
+                            worker.run();
+                        } finally {
+                            slots.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            worker.run();
+            for (FutureTask<T> future : futures) {
+                future.get();
+                result.add(future);
+            }
+        } catch (ExecutionException e) {
+            // can't happen, failures of the tasks are kept in their futures
+            throw new IllegalStateException(e.getMessage());
+        } catch (InterruptedException e) {
+            // compilation was cancelled, results of unfinished tasks are dropped
+            Thread.currentThread().interrupt();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a pool of daemon worker threads; the caller must shut it down.
+     */
+    @NotNull
+    static ExecutorService createPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+    }
+
+    /**
+     * Wraps a task to be run on a worker thread so that tool output reaches the listener of the calling thread, and
+     * tool invocations are traced in the build trace scope of the calling thread.
+     */
+    @NotNull
+    static <T> Callable<T> propagateThreadContext(@NotNull Callable<T> task) {
+        return new ContextPropagatingTask<T>(task, ExternalCompilerTool.getOutputListener(), BuildTrace.getScope(),
+                ourSlots.get());
+    }
+
+    private static final class ContextPropagatingTask<T> implements Callable<T> {
+        private final Callable<T> myTask;
+        private final ToolOutputListener myListener;
+        private final BuildTrace.Scope myScope;
+        private final Semaphore mySlots;
+
+        private ContextPropagatingTask(Callable<T> task, ToolOutputListener listener, BuildTrace.Scope scope,
+                                       Semaphore slots) {
+            myTask = task;
+            myListener = listener;
+            myScope = scope;
+            mySlots = slots;
+        }
+
+        public T call() throws Exception {
+            ExternalCompilerTool.setOutputListener(myListener);
+            BuildTrace.setScope(myScope);
+            ourSlots.set(mySlots);
+            try {
+                return myTask.call();
+            } finally {
+                ourSlots.set(null);
+                BuildTrace.setScope(null);
+                ExternalCompilerTool.setOutputListener(null);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger ourCounter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Android compiler worker " + ourCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
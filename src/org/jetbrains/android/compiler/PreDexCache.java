@@ -0,0 +1,173 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.android.compiler.tools.AndroidDx;
+import org.jetbrains.android.compiler.tools.DxOptions;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Application-wide cache of dexed library jars, shared by all modules and projects and kept between IDE sessions.
+ * An entry is keyed by the content digest of the jar, the digest of dx.jar and the dx options, so it is only reused
+ * where dx would produce the same dex file. The timestamp of an entry is the time it was last used; the least recently
+ * used entries are deleted when the cache grows over {@link #MAX_SIZE_PROPERTY}.
+ *
+ * @author Alexey Efimov
+ */
+final class PreDexCache {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.PreDexCache");
+
+    /**
+     * Application setting limiting the size of the cache, in megabytes.
+     */
+    @NonNls
+    static final String MAX_SIZE_PROPERTY = "AndroidPreDexCacheSize";
+    private static final long DEFAULT_MAX_SIZE = 256;
+
+    @NonNls
+    private static final String CACHE_DIR = "android" + File.separator + "predex";
+    @NonNls
+    private static final String DEX_EXTENSION = ".dex";
+    @NonNls
+    private static final String TEMP_EXTENSION = ".tmp";
+    @NonNls
+    private static final String KEY_ALGORITHM = "MD5";
+    /**
+     * Number of locks entries are distributed over; unrelated jars rarely share one, and the locks never pile up.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    private static final PreDexCache ourInstance = new PreDexCache(new File(PathManager.getSystemPath(), CACHE_DIR));
+
+    private final File myDir;
+    private final Object[] myLocks = new Object[LOCK_COUNT];
+
+    private PreDexCache(@NotNull File dir) {
+        myDir = dir;
+        for (int i = 0; i < myLocks.length; i++) {
+            myLocks[i] = new Object();
+        }
+    }
+
+    static PreDexCache getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Writes the dex file of the jar to the target file. The jar is dexed only if the cache has no entry for it yet;
+     * concurrent requests for the same jar wait for the first one instead of dexing it again.
+     */
+    @NotNull
+    Map<CompilerMessageCategory, List<String>> dex(@NotNull String sdkPath, @NotNull File jar, @NotNull File target,
+                                                   @NotNull DxOptions options, boolean inProcess) throws IOException {
+        String key = getKey(sdkPath, jar, options);
+        Map<CompilerMessageCategory, List<String>> messages;
+        synchronized (getLock(key)) {
+            File entry = new File(myDir, key + DEX_EXTENSION);
+            if (entry.isFile()) {
+                entry.setLastModified(System.currentTimeMillis());
+                FileUtil.copy(entry, target);
+                return AndroidCompileUtil.createMessages();
+            }
+            if (!myDir.isDirectory() && !myDir.mkdirs()) {
+                throw new IOException("Cannot create directory " + myDir.getPath());
+            }
+            File temp = new File(myDir, key + TEMP_EXTENSION);
+            try {
+                messages = AndroidDx.dexFiles(sdkPath, temp.getPath(), Collections.singletonList(jar.getPath()), options,
+                        inProcess);
+                if (!messages.get(CompilerMessageCategory.ERROR).isEmpty() || !temp.isFile()) {
+                    return messages;
+                }
+                FileUtil.copy(temp, target);
+                if (!temp.renameTo(entry)) {
+                    LOG.info("Cannot rename " + temp.getPath() + " to " + entry.getPath());
+                }
+            } finally {
+                FileUtil.delete(temp);
+            }
+        }
+        evict();
+        return messages;
+    }
+
+    @NotNull
+    private static String getKey(@NotNull String sdkPath, @NotNull File jar, @NotNull DxOptions options) throws IOException {
+        ResourceDigestCache digestCache = ResourceDigestCache.getInstance();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(KEY_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        digest.update(digestCache.getDigest(jar));
+        digest.update(digestCache.getDigest(new File(AndroidDx.getDxJarPath(sdkPath))));
+        digest.update(AndroidDx.getDexOptions(options).getBytes("UTF-8"));
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private Object getLock(@NotNull String key) {
+        return myLocks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_COUNT];
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into its size limit.
+     */
+    private void evict() {
+        File[] files = myDir.listFiles();
+        if (files == null) return;
+        List<File> entries = new ArrayList<File>(files.length);
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(DEX_EXTENSION)) {
+                entries.add(file);
+                size += file.length();
+            }
+        }
+        long maxSize = getMaxSize();
+        if (size <= maxSize) return;
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : t1 == t2 ? 0 : 1;
+            }
+        });
+        for (File entry : entries) {
+            if (size <= maxSize) break;
+            String name = entry.getName();
+            synchronized (getLock(name.substring(0, name.length() - DEX_EXTENSION.length()))) {
+                long length = entry.length();
+                if (FileUtil.delete(entry)) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private static long getMaxSize() {
+        long megabytes = DEFAULT_MAX_SIZE;
+        String value = PropertiesComponent.getInstance().getValue(MAX_SIZE_PROPERTY);
+        if (value != null) {
+            try {
+                megabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return megabytes << 20;
+    }
+}
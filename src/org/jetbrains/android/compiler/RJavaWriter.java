@@ -0,0 +1,424 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerAdapter;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.util.ResourceFileUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes R.java from the {@link ResourceSymbolIndex} without running aapt. Resource IDs are assigned the way aapt assigns
+ * them when it builds the resource package: the attr type first, then types and entries in the order aapt meets them.
+ * The file is only written if its contents change, so javac doesn't recompile classes which depend on R.
+ * <p/>
+ * Resources aapt would number differently are left to aapt: styleables with framework attributes, public
+ * declarations and resource types the writer doesn't know. The IDs written for a module are kept until the packaging
+ * compiler compares them with the ones aapt assigned in the resource package, see {@link #verify}; if they differ,
+ * R.java is replaced by the one of aapt and the module falls back to aapt for the rest of the session. Modules are
+ * identified by the paths of their module files and forgotten when their project is closed.
+ * <p/>
+ * The symbols are read with SAX rather than from the DOM model of resources ({@code Resources},
+ * {@code ResourceElement}, layouts scanned for {@code @+id/}), so compile threads need neither PSI nor a read action.
+ *
+ * @author Alexey Efimov
+ */
+final class RJavaWriter {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.RJavaWriter");
+
+    private static final int PACKAGE_ID = 0x7f;
+
+    /**
+     * File-based resource types in the order aapt adds them before and after the values.
+     */
+    @NonNls
+    private static final String[] FILE_TYPES_BEFORE_VALUES = {"drawable", "layout", "anim", "xml", "raw"};
+    @NonNls
+    private static final String[] FILE_TYPES_AFTER_VALUES = {"color", "menu"};
+    /**
+     * Types of XML files compiled after the values, in the order aapt compiles them and collects their ids.
+     */
+    @NonNls
+    private static final String[] ID_FILE_TYPES = {"layout", "anim", "xml", "drawable", "color", "menu"};
+
+    private static final Pattern ourClassPattern = Pattern.compile("public static final class (\\w+)");
+    @NonNls
+    private static final String ENCODING = "UTF-8";
+
+    private static final Pattern ourFieldPattern = Pattern.compile("public static final int (\\w+)\\s*=\\s*0x([0-9a-fA-F]+);");
+
+    private static final RJavaWriter ourInstance = new RJavaWriter();
+
+    private final Map<String, Written> myWritten = new HashMap<String, Written>();
+    private final Set<String> myDisabledModules = new HashSet<String>();
+
+    private RJavaWriter() {
+        ProjectManager.getInstance().addProjectManagerListener(new ProjectManagerAdapter() {
+            @Override
+            public void projectClosed(Project project) {
+                forget(project);
+            }
+        });
+    }
+
+    static RJavaWriter getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Writes R.java for the resources, returns false if it has to be generated by aapt.
+     */
+    boolean write(@NotNull Module module, @NotNull final String resourcesPath, @NotNull String packageName,
+                  @NotNull File rJava) throws IOException {
+        String key = getKey(module);
+        synchronized (this) {
+            if (myDisabledModules.contains(key)) return false;
+        }
+        Map<String, Map<String, Integer>> ids = ApplicationManager.getApplication().runReadAction(
+                new Computable<Map<String, Map<String, Integer>>>() {
+                    public Map<String, Map<String, Integer>> compute() {
+                        VirtualFile resourcesDir = LocalFileSystem.getInstance().findFileByPath(resourcesPath);
+                        return resourcesDir != null ? new IdAssigner(resourcesDir).assign() : null;
+                    }
+                });
+        if (ids == null) return false;
+        String text = toJava(packageName, ids);
+        if (!rJava.isFile() || !text.equals(new String(FileUtil.loadFileText(rJava, ENCODING)))) {
+            FileUtil.createParentDirs(rJava);
+            FileUtil.writeToFile(rJava, text.getBytes(ENCODING));
+        }
+        synchronized (this) {
+            Written written = myWritten.get(key);
+            if (written == null || !written.myIds.equals(toFieldValues(ids))) {
+                written = new Written(toFieldValues(ids));
+                myWritten.put(key, written);
+            }
+            written.myFiles.add(rJava);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if R.java of the module was written by the writer and its IDs weren't compared with aapt yet.
+     */
+    synchronized boolean needsVerification(@NotNull Module module) {
+        return myWritten.containsKey(getKey(module));
+    }
+
+    /**
+     * Compares the IDs written for the module with R.java aapt generated along with the resource package. Returns an
+     * error message if they differ, in which case the written files are replaced with the one of aapt.
+     */
+    @Nullable
+    String verify(@NotNull Module module, @NotNull File aaptRJava) throws IOException {
+        String key = getKey(module);
+        Written written;
+        synchronized (this) {
+            written = myWritten.remove(key);
+        }
+        if (written == null || !aaptRJava.isFile()) return null;
+        String aaptText = new String(FileUtil.loadFileText(aaptRJava, ENCODING));
+        if (written.myIds.equals(parseFieldValues(aaptText))) return null;
+        synchronized (this) {
+            myDisabledModules.add(key);
+        }
+        for (File file : written.myFiles) {
+            FileUtil.writeToFile(file, aaptText.getBytes(ENCODING));
+        }
+        LOG.info("Resource IDs of R.java written for " + module.getName() + " differ from aapt");
+        return "R.java of module " + module.getName() + " didn't match the resource package and was regenerated by aapt, " +
+                "rebuild the module";
+    }
+
+    @NotNull
+    private static String getKey(@NotNull Module module) {
+        return module.getModuleFilePath();
+    }
+
+    private synchronized void forget(@NotNull Project project) {
+        for (Module module : ModuleManager.getInstance(project).getModules()) {
+            myWritten.remove(getKey(module));
+            myDisabledModules.remove(getKey(module));
+        }
+    }
+
+    /**
+     * Returns class.field -> value for the resource IDs of R.java.
+     */
+    @NotNull
+    private static Map<String, Integer> toFieldValues(Map<String, Map<String, Integer>> ids) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (Map.Entry<String, Map<String, Integer>> type : ids.entrySet()) {
+            if (ResourceSymbolIndex.STYLEABLE_TYPE.equals(type.getKey())) continue;
+            for (Map.Entry<String, Integer> entry : type.getValue().entrySet()) {
+                result.put(type.getKey() + "." + toFieldName(entry.getKey()), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static Map<String, Integer> parseFieldValues(String text) {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        String className = null;
+        for (String line : text.split("\n")) {
+            Matcher classMatcher = ourClassPattern.matcher(line);
+            if (classMatcher.find()) {
+                className = classMatcher.group(1);
+                continue;
+            }
+            Matcher fieldMatcher = ourFieldPattern.matcher(line);
+            if (className != null && fieldMatcher.find()) {
+                result.put(className + "." + fieldMatcher.group(1), (int) Long.parseLong(fieldMatcher.group(2), 16));
+            }
+        }
+        return result;
+    }
+
+    private static String toFieldName(String name) {
+        return name.replace('.', '_');
+    }
+
+    @NotNull
+    private static String toJava(String packageName, Map<String, Map<String, Integer>> ids) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("/* AUTO-GENERATED FILE.  DO NOT MODIFY.\n");
+        builder.append(" *\n");
+        builder.append(" * This class was automatically generated by the\n");
+        builder.append(" * IDE from the resource data it found.  It\n");
+        builder.append(" * should not be modified by hand.\n");
+        builder.append(" */\n\n");
+        builder.append("package ").append(packageName).append(";\n\n");
+        builder.append("public final class R {\n");
+        for (Map.Entry<String, Map<String, Integer>> type : ids.entrySet()) {
+            if (ResourceSymbolIndex.STYLEABLE_TYPE.equals(type.getKey())) continue;
+            builder.append("    public static final class ").append(type.getKey()).append(" {\n");
+            for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(type.getValue()).entrySet()) {
+                builder.append("        public static final int ").append(toFieldName(entry.getKey())).append("=0x")
+                        .append(toHex(entry.getValue())).append(";\n");
+            }
+            builder.append("    }\n");
+        }
+        Map<String, Integer> styleables = ids.get(ResourceSymbolIndex.STYLEABLE_TYPE);
+        if (styleables != null) {
+            builder.append("    public static final class styleable {\n");
+            Map<String, Integer> attrs = ids.get(ResourceSymbolIndex.ATTR_TYPE);
+            for (Map.Entry<String, List<String>> styleable : getStyleableAttrs(styleables, attrs).entrySet()) {
+                String name = toFieldName(styleable.getKey());
+                List<String> styleableAttrs = styleable.getValue();
+                builder.append("        public static final int[] ").append(name).append(" = {\n");
+                builder.append("           ");
+                for (int i = 0; i < styleableAttrs.size(); i++) {
+                    builder.append(i > 0 ? ", 0x" : " 0x").append(toHex(attrs.get(styleableAttrs.get(i))));
+                }
+                builder.append("\n        };\n");
+                for (int i = 0; i < styleableAttrs.size(); i++) {
+                    builder.append("        public static final int ").append(name).append('_')
+                            .append(toFieldName(styleableAttrs.get(i))).append(" = ").append(i).append(";\n");
+                }
+            }
+            builder.append("    }\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    /**
+     * Returns styleable -> its attributes, sorted by their IDs the way aapt sorts them. Styleable symbols are kept in
+     * the IDs map as {@code Styleable:attr} keys.
+     */
+    private static Map<String, List<String>> getStyleableAttrs(Map<String, Integer> styleables, final Map<String, Integer> attrs) {
+        Map<String, List<String>> result = new TreeMap<String, List<String>>();
+        for (String key : styleables.keySet()) {
+            int colon = key.indexOf(':');
+            String styleable = colon > 0 ? key.substring(0, colon) : key;
+            List<String> list = result.get(styleable);
+            if (list == null) {
+                list = new ArrayList<String>();
+                result.put(styleable, list);
+            }
+            if (colon > 0) {
+                list.add(key.substring(colon + 1));
+            }
+        }
+        for (List<String> list : result.values()) {
+            Collections.sort(list, new Comparator<String>() {
+                public int compare(String a1, String a2) {
+                    return attrs.get(a1).compareTo(attrs.get(a2));
+                }
+            });
+        }
+        return result;
+    }
+
+    private static String toHex(int value) {
+        String hex = Integer.toHexString(value);
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Collects resources in the order aapt adds them to the resource table and numbers them.
+     */
+    private static final class IdAssigner {
+        private final Map<String, List<VirtualFile>> myTypeDirs = new HashMap<String, List<VirtualFile>>();
+        /**
+         * type -> names, both in the order they were added; the styleable "type" has no IDs of its own.
+         */
+        private final Map<String, Set<String>> myTypes = new LinkedHashMap<String, Set<String>>();
+
+        private IdAssigner(VirtualFile resourcesDir) {
+            for (VirtualFile dir : resourcesDir.getChildren()) {
+                if (!dir.isDirectory()) continue;
+                String type = ResourceFileUtil.getResourceType(dir.getName());
+                List<VirtualFile> dirs = myTypeDirs.get(type);
+                if (dirs == null) {
+                    dirs = new ArrayList<VirtualFile>();
+                    myTypeDirs.put(type, dirs);
+                }
+                dirs.add(dir);
+            }
+            for (List<VirtualFile> dirs : myTypeDirs.values()) {
+                Collections.sort(dirs, new Comparator<VirtualFile>() {
+                    public int compare(VirtualFile d1, VirtualFile d2) {
+                        return ResourceFileUtil.DIR_NAME_COMPARATOR.compare(d1.getName(), d2.getName());
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns type -> name -> ID, or null if the resources need aapt.
+         */
+        @Nullable
+        Map<String, Map<String, Integer>> assign() {
+            Set<String> knownTypes = new HashSet<String>();
+            knownTypes.add(ResourceSymbolIndex.VALUES_TYPE);
+            knownTypes.addAll(Arrays.asList(FILE_TYPES_BEFORE_VALUES));
+            knownTypes.addAll(Arrays.asList(FILE_TYPES_AFTER_VALUES));
+            if (!knownTypes.containsAll(myTypeDirs.keySet())) return null;
+
+            getNames(ResourceSymbolIndex.ATTR_TYPE);
+            for (String type : FILE_TYPES_BEFORE_VALUES) {
+                addFileResources(type);
+            }
+            for (VirtualFile file : getFiles(ResourceSymbolIndex.VALUES_TYPE)) {
+                for (String symbol : ResourceSymbolIndex.getInstance().getSymbols(file, ResourceSymbolIndex.VALUES_TYPE)) {
+                    if (!add(symbol)) return null;
+                }
+            }
+            for (String type : FILE_TYPES_AFTER_VALUES) {
+                addFileResources(type);
+            }
+            for (String type : ID_FILE_TYPES) {
+                for (VirtualFile file : getFiles(type)) {
+                    if (!file.getName().endsWith(".xml")) continue;
+                    for (String symbol : ResourceSymbolIndex.getInstance().getSymbols(file, type)) {
+                        if (symbol.startsWith(ResourceSymbolIndex.ID_TYPE + "/")) {
+                            add(symbol);
+                        }
+                    }
+                }
+            }
+
+            Map<String, Map<String, Integer>> result = new LinkedHashMap<String, Map<String, Integer>>();
+            int typeId = 1;
+            for (Map.Entry<String, Set<String>> type : myTypes.entrySet()) {
+                Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+                boolean styleable = ResourceSymbolIndex.STYLEABLE_TYPE.equals(type.getKey());
+                int entryId = 0;
+                for (String name : type.getValue()) {
+                    ids.put(name, styleable ? 0 : (PACKAGE_ID << 24) | (typeId << 16) | entryId++);
+                }
+                if (!styleable) {
+                    typeId++;
+                }
+                result.put(type.getKey(), ids);
+            }
+            return result;
+        }
+
+        /**
+         * Adds a symbol of a values file, returns false if aapt has to number the resources.
+         */
+        private boolean add(String symbol) {
+            int slash = symbol.indexOf('/');
+            String type = symbol.substring(0, slash);
+            String name = symbol.substring(slash + 1);
+            if (ResourceSymbolIndex.PUBLIC_TYPE.equals(type)) return false;
+            if (ResourceSymbolIndex.STYLEABLE_TYPE.equals(type) && name.contains(":" + ResourceSymbolIndex.ANDROID_PREFIX)) {
+                return false;
+            }
+            getNames(type).add(name);
+            return true;
+        }
+
+        private void addFileResources(String type) {
+            Set<String> names = new TreeSet<String>();
+            for (VirtualFile file : getFiles(type)) {
+                names.add(ResourceFileUtil.getResourceName(file.getName()));
+            }
+            if (!names.isEmpty()) {
+                getNames(type).addAll(names);
+            }
+        }
+
+        private Set<String> getNames(String type) {
+            Set<String> names = myTypes.get(type);
+            if (names == null) {
+                names = new LinkedHashSet<String>();
+                myTypes.put(type, names);
+            }
+            return names;
+        }
+
+        /**
+         * Returns files of the type grouped by name, each name in the order of its directories, the way aapt iterates
+         * over resource files.
+         */
+        private List<VirtualFile> getFiles(String type) {
+            List<VirtualFile> dirs = myTypeDirs.get(type);
+            if (dirs == null) return Collections.emptyList();
+            Map<String, List<VirtualFile>> byName = new TreeMap<String, List<VirtualFile>>();
+            for (VirtualFile dir : dirs) {
+                for (VirtualFile file : dir.getChildren()) {
+                    if (file.isDirectory() || file.getName().startsWith(".")) continue;
+                    List<VirtualFile> files = byName.get(file.getName());
+                    if (files == null) {
+                        files = new ArrayList<VirtualFile>();
+                        byName.put(file.getName(), files);
+                    }
+                    files.add(file);
+                }
+            }
+            List<VirtualFile> result = new ArrayList<VirtualFile>();
+            for (List<VirtualFile> files : byName.values()) {
+                result.addAll(files);
+            }
+            return result;
+        }
+    }
+
+    private static final class Written {
+        private final Map<String, Integer> myIds;
+        private final Set<File> myFiles = new HashSet<File>();
+
+        private Written(Map<String, Integer> ids) {
+            myIds = ids;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Application-wide cache of content digests of resource files and library jars. A digest is reused while the file
+ * keeps its size and modification time, so unchanged files are never re-hashed. The cache is persisted in the IDE
+ * system directory.
+ *
+ * @author yole
+ */
+public final class ResourceDigestCache {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.ResourceDigestCache");
+
+    @NonNls
+    private static final String DIGEST_ALGORITHM = "MD5";
+    public static final int DIGEST_LENGTH = 16;
+    private static final int VERSION = 1;
+
+    private static final ResourceDigestCache ourInstance = new ResourceDigestCache(
+            new File(PathManager.getSystemPath(), "android" + File.separator + "resource_digests.dat"));
+
+    private final File myStorageFile;
+    private Map<String, Entry> myEntries;
+    private boolean myModified;
+
+    private ResourceDigestCache(@NotNull File storageFile) {
+        myStorageFile = storageFile;
+    }
+
+    public static ResourceDigestCache getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Returns the content digest of the file, computing it only if the file changed since it was last hashed.
+     */
+    @NotNull
+    public byte[] getDigest(@NotNull VirtualFile file) throws IOException {
+        return getDigest(new File(file.getPath()));
+    }
+
+    /**
+     * The size and modification time are taken from the disk file which is hashed, not from the possibly outdated
+     * VFS snapshot, and before hashing, so a file changed meanwhile is hashed again next time.
+     */
+    @NotNull
+    public byte[] getDigest(@NotNull File file) throws IOException {
+        String path = file.getPath();
+        long length = file.length();
+        long timestamp = file.lastModified();
+        synchronized (this) {
+            Entry entry = getEntries().get(path);
+            if (entry != null && entry.myLength == length && entry.myTimestamp == timestamp) {
+                return entry.myDigest;
+            }
+        }
+        byte[] digest = computeDigest(file);
+        synchronized (this) {
+            getEntries().put(path, new Entry(length, timestamp, digest));
+            myModified = true;
+        }
+        return digest;
+    }
+
+    @NotNull
+    private static byte[] computeDigest(@NotNull File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        byte[] buffer = new byte[8192];
+        InputStream is = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Writes the cache to disk if it was changed since the last save.
+     */
+    public synchronized void save() {
+        if (!myModified || myEntries == null) return;
+        File parent = myStorageFile.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            LOG.info("Cannot create directory " + parent);
+            return;
+        }
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myStorageFile)));
+            try {
+                os.writeInt(VERSION);
+                os.writeInt(myEntries.size());
+                for (Map.Entry<String, Entry> e : myEntries.entrySet()) {
+                    Entry entry = e.getValue();
+                    os.writeUTF(e.getKey());
+                    os.writeLong(entry.myLength);
+                    os.writeLong(entry.myTimestamp);
+                    os.write(entry.myDigest);
+                }
+            } finally {
+                os.close();
+            }
+            myModified = false;
+        } catch (IOException e) {
+            LOG.info(e);
+        }
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (myEntries == null) {
+            myEntries = new HashMap<String, Entry>();
+            if (myStorageFile.exists()) {
+                load();
+            }
+        }
+        return myEntries;
+    }
+
+    private void load() {
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(myStorageFile)));
+            try {
+                if (is.readInt() != VERSION) return;
+                int count = is.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = is.readUTF();
+                    long length = is.readLong();
+                    long timestamp = is.readLong();
+                    byte[] digest = new byte[DIGEST_LENGTH];
+                    is.readFully(digest);
+                    myEntries.put(path, new Entry(length, timestamp, digest));
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            LOG.info(e);
+            myEntries.clear();
+        }
+        // forget files which were deleted since the previous session
+        for (Iterator<String> it = myEntries.keySet().iterator(); it.hasNext();) {
+            if (!new File(it.next()).exists()) {
+                it.remove();
+                myModified = true;
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final long myLength;
+        private final long myTimestamp;
+        private final byte[] myDigest;
+
+        private Entry(long length, long timestamp, byte[] digest) {
+            myLength = length;
+            myTimestamp = timestamp;
+            myDigest = digest;
+        }
+    }
+}
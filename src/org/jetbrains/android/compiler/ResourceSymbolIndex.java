@@ -0,0 +1,222 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.android.util.ResourceFileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.*;
+
+/**
+ * Application-wide index of the resource symbols, i.e. the fields of R.java, declared by resource files: values
+ * declared in values files, file-based resources and {@code @+id/} declarations. Symbols of a file are reused while the
+ * file keeps its size and modification time, so unchanged files are never parsed again.
+ * <p/>
+ * A symbol is {@code type/name}. An attribute of a styleable is {@code styleable/Styleable:attr}, where the attribute
+ * name may have the {@code android:} prefix. Symbols of a file are kept in the order they are declared in.
+ *
+ * @author Alexey Efimov
+ */
+final class ResourceSymbolIndex {
+    @NonNls
+    static final String VALUES_TYPE = "values";
+    @NonNls
+    static final String ID_TYPE = "id";
+    @NonNls
+    static final String ATTR_TYPE = "attr";
+    @NonNls
+    static final String STYLEABLE_TYPE = "styleable";
+    @NonNls
+    static final String ANDROID_PREFIX = "android:";
+    @NonNls
+    static final String PUBLIC_TYPE = "public";
+    @NonNls
+    private static final String NEW_ID_PREFIX = "@+id/";
+
+    private static final String[] EMPTY_SYMBOLS = new String[0];
+    private static final ResourceSymbolIndex ourInstance = new ResourceSymbolIndex();
+
+    private final Map<String, Entry> myEntries = new HashMap<String, Entry>();
+
+    private ResourceSymbolIndex() {
+    }
+
+    static ResourceSymbolIndex getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Returns the symbols declared by the files of the resources directory in the order aapt reads them: directories
+     * ordered by {@link ResourceFileUtil#DIR_NAME_COMPARATOR}, their files by name, the symbols of a file in declaration
+     * order. A symbol declared by several files is listed once for each of them.
+     */
+    @NotNull
+    List<String> getSymbols(@NotNull VirtualFile resourcesDir) {
+        List<String> symbols = new ArrayList<String>();
+        Set<String> paths = new HashSet<String>();
+        for (VirtualFile typeDir : sortByName(resourcesDir.getChildren(), ResourceFileUtil.DIR_NAME_COMPARATOR)) {
+            if (!typeDir.isDirectory()) continue;
+            String type = ResourceFileUtil.getResourceType(typeDir.getName());
+            for (VirtualFile file : sortByName(typeDir.getChildren(), null)) {
+                if (file.isDirectory() || file.getName().startsWith(".")) continue;
+                paths.add(file.getPath());
+                symbols.addAll(Arrays.asList(getSymbols(file, type)));
+            }
+        }
+        forgetOthers(resourcesDir.getPath() + "/", paths);
+        return symbols;
+    }
+
+    /**
+     * Returns the symbols declared by a file of a resources directory of the given type, in declaration order.
+     */
+    @NotNull
+    String[] getSymbols(@NotNull VirtualFile file, @NotNull String type) {
+        String path = file.getPath();
+        long length = file.getLength();
+        long timestamp = file.getTimeStamp();
+        synchronized (this) {
+            Entry entry = myEntries.get(path);
+            if (entry != null && entry.myLength == length && entry.myTimestamp == timestamp) {
+                return entry.mySymbols;
+            }
+        }
+        Set<String> symbols = new LinkedHashSet<String>();
+        if (!VALUES_TYPE.equals(type)) {
+            symbols.add(type + "/" + ResourceFileUtil.getResourceName(file.getName()));
+        }
+        if (VALUES_TYPE.equals(type) || file.getName().endsWith(".xml")) {
+            // a malformed file declares whatever was read before the error
+            ResourceFileUtil.parse(file, null, new SymbolCollector(VALUES_TYPE.equals(type), symbols));
+        }
+        String[] result = symbols.isEmpty() ? EMPTY_SYMBOLS : symbols.toArray(new String[symbols.size()]);
+        synchronized (this) {
+            myEntries.put(path, new Entry(length, timestamp, result));
+        }
+        return result;
+    }
+
+    @NotNull
+    private static VirtualFile[] sortByName(@NotNull VirtualFile[] files, @Nullable final Comparator<String> nameComparator) {
+        VirtualFile[] result = files.clone();
+        Arrays.sort(result, new Comparator<VirtualFile>() {
+            public int compare(VirtualFile f1, VirtualFile f2) {
+                return nameComparator != null ? nameComparator.compare(f1.getName(), f2.getName())
+                        : f1.getName().compareTo(f2.getName());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forgets files of the resources directory which weren't seen in the last scan, i.e. were deleted.
+     */
+    private synchronized void forgetOthers(@NotNull String resourcesPath, @NotNull Set<String> paths) {
+        for (Iterator<String> it = myEntries.keySet().iterator(); it.hasNext();) {
+            String path = it.next();
+            if (path.startsWith(resourcesPath) && !paths.contains(path)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Collects resources declared in values files and ids declared by {@code @+id/} references in any resource XML.
+     */
+    static final class SymbolCollector extends DefaultHandler {
+        private final boolean myValues;
+        private final Set<String> mySymbols;
+        private int myDepth;
+        private String myStyleable;
+        private boolean myInAttr;
+
+        SymbolCollector(boolean values, Set<String> symbols) {
+            myValues = values;
+            mySymbols = symbols;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            myDepth++;
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String value = attributes.getValue(i);
+                if (value.startsWith(NEW_ID_PREFIX)) {
+                    mySymbols.add(ID_TYPE + "/" + value.substring(NEW_ID_PREFIX.length()));
+                }
+            }
+            if (!myValues) return;
+            String name = attributes.getValue("name");
+            if (myDepth == 2 && name != null) {
+                String type = getValueType(qName, attributes);
+                if (type != null) {
+                    mySymbols.add(type + "/" + name);
+                }
+                if (STYLEABLE_TYPE.equals(type)) {
+                    myStyleable = name;
+                }
+                myInAttr = ATTR_TYPE.equals(type);
+            }
+            else if (myDepth == 3 && name != null) {
+                if (myStyleable != null && ATTR_TYPE.equals(qName)) {
+                    mySymbols.add(STYLEABLE_TYPE + "/" + myStyleable + ":" + name);
+                    if (!name.startsWith(ANDROID_PREFIX)) {
+                        mySymbols.add(ATTR_TYPE + "/" + name);
+                    }
+                    myInAttr = true;
+                }
+                else if (myInAttr && ("enum".equals(qName) || "flag".equals(qName))) {
+                    mySymbols.add(ID_TYPE + "/" + name);
+                }
+            }
+            else if (myDepth == 4 && name != null && myInAttr && ("enum".equals(qName) || "flag".equals(qName))) {
+                mySymbols.add(ID_TYPE + "/" + name);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (myDepth == 2) {
+                myStyleable = null;
+                myInAttr = false;
+            }
+            else if (myDepth == 3 && myStyleable != null) {
+                myInAttr = false;
+            }
+            myDepth--;
+        }
+
+        /**
+         * Returns the resource type declared by a child of {@code <resources>}, or null if it doesn't declare one.
+         */
+        private static String getValueType(String tagName, Attributes attributes) {
+            if ("item".equals(tagName)) {
+                return attributes.getValue("type");
+            }
+            if ("declare-styleable".equals(tagName)) {
+                return STYLEABLE_TYPE;
+            }
+            if ("string-array".equals(tagName) || "integer-array".equals(tagName)) {
+                return "array";
+            }
+            if ("skip".equals(tagName) || "eat-comment".equals(tagName)) {
+                return null;
+            }
+            return tagName;
+        }
+    }
+
+    private static final class Entry {
+        private final long myLength;
+        private final long myTimestamp;
+        private final String[] mySymbols;
+
+        private Entry(long length, long timestamp, String[] symbols) {
+            myLength = length;
+            myTimestamp = timestamp;
+            mySymbols = symbols;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.compiler.ValidityState;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State of the module resources as far as R.java is concerned: the package of R.java, whether R.java exists and the
+ * resource symbols in the order aapt numbers them, see {@link ResourceSymbolIndex}. Editing a value or the pixels of a
+ * drawable doesn't change the state, so R.java is only regenerated when a resource is added, removed, renamed or
+ * declared in another order, or R.java was deleted. The symbols are kept as a digest.
+ *
+ * @author Alexey Efimov
+ */
+public class ResourceSymbolsValidityState implements ValidityState {
+    private static final byte VERSION = 2;
+    @NonNls
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private final String myPackage;
+    private final boolean myGeneratedFileExists;
+    private final byte[] myDigest;
+
+    public ResourceSymbolsValidityState(@NotNull Module module, @NotNull String packageName, @NotNull File generatedFile) {
+        myPackage = packageName;
+        myGeneratedFileExists = generatedFile.isFile();
+        AndroidFacet facet = AndroidFacet.getInstance(module);
+        VirtualFile resourcesDir = facet != null ? facet.getResourcesDir() : null;
+        myDigest = getDigest(resourcesDir != null ? ResourceSymbolIndex.getInstance().getSymbols(resourcesDir)
+                : Collections.<String>emptyList());
+    }
+
+    /**
+     * Returns the digest of the symbols in the given order.
+     */
+    @NotNull
+    static byte[] getDigest(@NotNull List<String> symbols) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        for (String symbol : symbols) {
+            for (int i = 0; i < symbol.length(); i++) {
+                char c = symbol.charAt(i);
+                digest.update((byte) (c >> 8));
+                digest.update((byte) c);
+            }
+            digest.update((byte) '\n');
+        }
+        return digest.digest();
+    }
+
+    public ResourceSymbolsValidityState(DataInput is) throws IOException {
+        if (is.readByte() != VERSION) {
+            throw new IOException("Unknown resource symbols state");
+        }
+        myPackage = is.readUTF();
+        myGeneratedFileExists = is.readBoolean();
+        myDigest = new byte[is.readUnsignedByte()];
+        is.readFully(myDigest);
+    }
+
+    public boolean equalsTo(ValidityState otherState) {
+        if (!(otherState instanceof ResourceSymbolsValidityState)) {
+            return false;
+        }
+        ResourceSymbolsValidityState rhs = (ResourceSymbolsValidityState) otherState;
+        return myPackage.equals(rhs.myPackage) && myGeneratedFileExists && rhs.myGeneratedFileExists &&
+                Arrays.equals(myDigest, rhs.myDigest);
+    }
+
+    public void save(DataOutput os) throws IOException {
+        os.writeByte(VERSION);
+        os.writeUTF(myPackage);
+        os.writeBoolean(myGeneratedFileExists);
+        os.writeByte(myDigest.length);
+        os.write(myDigest);
+    }
+}
@@ -1,6 +1,7 @@
 package org.jetbrains.android.compiler;
 
 import com.intellij.openapi.compiler.ValidityState;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.roots.CompilerModuleExtension;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -10,54 +11,133 @@ import org.jetbrains.android.facet.AndroidFacet;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
+ * State of the module resources: every file under the resources directory plus the manifest. Depending on the facet
+ * configuration a file is represented either by its timestamp or by its content digest, so that e.g. a VCS checkout
+ * which only touches timestamps doesn't invalidate the state. Paths are kept sorted, and the per-file values are
+ * stored in a single byte array, so states are compared without building any maps.
+ *
  * @author yole
  */
 public class ResourcesValidityState implements ValidityState {
-    private Map<String, Long> myResourceTimestamps = new HashMap<String, Long>();
-    private long myClassesTimestamp;
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.ResourcesValidityState");
+
+    /**
+     * Saved first; states of the earlier format start with the high byte of a timestamp, 0 or -1.
+     */
+    private static final byte VERSION = 2;
+
+    private static final byte TIMESTAMPS = 0;
+    private static final byte DIGESTS = 1;
+    /**
+     * Flag of the saved mode, set if a file couldn't be read.
+     */
+    private static final byte INVALID = 0x10;
+
+    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
+    private final byte myMode;
+    /**
+     * True if a file couldn't be read, such a state isn't equal to any other.
+     */
+    private boolean myInvalid;
+    private final long myClassesTimestamp;
+    private String[] myPaths = EMPTY_STRING_ARRAY;
+    private byte[] myValues = EMPTY_BYTE_ARRAY;
 
     public ResourcesValidityState(Module module, boolean includeClassesDex) {
-        myClassesTimestamp = -1;
+        long classesTimestamp = -1;
         if (includeClassesDex) {
             VirtualFile outputPath = CompilerModuleExtension.getInstance(module).getCompilerOutputPath();
             if (outputPath != null) {
                 VirtualFile classesDex = outputPath.findChild(AndroidManager.CLASSES_FILE_NAME);
                 if (classesDex != null) {
-                    myClassesTimestamp = classesDex.getTimeStamp();
+                    classesTimestamp = classesDex.getTimeStamp();
                 }
             }
         }
+        myClassesTimestamp = classesTimestamp;
         AndroidFacet facet = AndroidFacet.getInstance(module);
+        myMode = facet != null && facet.getConfiguration().CONTENT_HASH_VALIDITY ? DIGESTS : TIMESTAMPS;
         if (facet == null) return;
         VirtualFile resourcesDir = facet.getResourcesDir();
         if (resourcesDir == null) return;
-        collectResourceFiles(resourcesDir, "");
+        Map<String, VirtualFile> files = new TreeMap<String, VirtualFile>();
+        collectResourceFiles(resourcesDir, "", files);
+        VirtualFile manifestFile = facet.getManifestFile();
+        if (manifestFile != null) {
+            // resource paths start with '/', so the manifest can't clash with them
+            files.put(AndroidManager.MANIFEST_FILE_NAME, manifestFile);
+        }
+        fill(files);
     }
 
-    private void collectResourceFiles(VirtualFile resourcesDir, String relativePath) {
-        for(VirtualFile child: resourcesDir.getChildren()) {
+    private static void collectResourceFiles(VirtualFile resourcesDir, String relativePath, Map<String, VirtualFile> files) {
+        for (VirtualFile child : resourcesDir.getChildren()) {
             String path = relativePath + "/" + child.getName();
             if (child.isDirectory()) {
-                collectResourceFiles(child, path);
+                collectResourceFiles(child, path, files);
+            }
+            else {
+                files.put(path, child);
+            }
+        }
+    }
+
+    private void fill(Map<String, VirtualFile> files) {
+        int valueLength = getValueLength(myMode);
+        myPaths = files.keySet().toArray(new String[files.size()]);
+        myValues = new byte[myPaths.length * valueLength];
+        int offset = 0;
+        for (VirtualFile file : files.values()) {
+            if (myMode == DIGESTS) {
+                try {
+                    byte[] digest = ResourceDigestCache.getInstance().getDigest(file);
+                    System.arraycopy(digest, 0, myValues, offset, valueLength);
+                } catch (IOException e) {
+                    // the file will be reprocessed until it is readable again
+                    LOG.info(e);
+                    myInvalid = true;
+                }
             }
             else {
-                myResourceTimestamps.put(path, child.getTimeStamp());
+                writeLong(file.getTimeStamp(), myValues, offset);
             }
+            offset += valueLength;
+        }
+    }
+
+    private static int getValueLength(byte mode) {
+        return mode == DIGESTS ? ResourceDigestCache.DIGEST_LENGTH : 8;
+    }
+
+    private static void writeLong(long value, byte[] buffer, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
         }
     }
 
     public ResourcesValidityState(DataInput is) throws IOException {
+        if (is.readByte() != VERSION) {
+            throw new IOException("Unknown resources state");
+        }
+        byte mode = is.readByte();
+        myMode = (byte) (mode & ~INVALID);
+        myInvalid = (mode & INVALID) != 0;
         myClassesTimestamp = is.readLong();
         int count = is.readInt();
-        for(int i=0; i<count; i++) {
-            String path = is.readUTF();
-            long timestamp = is.readLong();
-            myResourceTimestamps.put(path, timestamp);
+        myPaths = new String[count];
+        for (int i = 0; i < count; i++) {
+            myPaths[i] = is.readUTF();
         }
+        myValues = new byte[count * getValueLength(myMode)];
+        is.readFully(myValues);
     }
 
     public boolean equalsTo(ValidityState otherState) {
@@ -65,15 +145,18 @@ public class ResourcesValidityState implements ValidityState {
             return false;
         }
         ResourcesValidityState rhs = (ResourcesValidityState) otherState;
-        return myResourceTimestamps.equals(rhs.myResourceTimestamps) && myClassesTimestamp == rhs.myClassesTimestamp;
+        return !myInvalid && !rhs.myInvalid && myMode == rhs.myMode && myClassesTimestamp == rhs.myClassesTimestamp &&
+                Arrays.equals(myPaths, rhs.myPaths) && Arrays.equals(myValues, rhs.myValues);
     }
 
     public void save(DataOutput os) throws IOException {
+        os.writeByte(VERSION);
+        os.writeByte(myInvalid ? myMode | INVALID : myMode);
         os.writeLong(myClassesTimestamp);
-        os.writeInt(myResourceTimestamps.size());
-        for(Map.Entry<String, Long> e: myResourceTimestamps.entrySet()) {
-            os.writeUTF(e.getKey());
-            os.writeLong(e.getValue());
+        os.writeInt(myPaths.length);
+        for (String path : myPaths) {
+            os.writeUTF(path);
         }
+        os.write(myValues);
     }
 }
@@ -0,0 +1,98 @@
+package org.jetbrains.android.compiler;
+
+import com.intellij.openapi.compiler.CompileContext;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the source location in lines printed by aapt, aidl and dx. The tools print locations as
+ * {@code path:line: text} (aapt), {@code path:line text} (aidl), {@code path:line:column: text} or {@code path: text};
+ * a location is only reported if the path exists. Existence of paths is checked once per make.
+ *
+ * @author Alexey Efimov
+ */
+final class ToolOutputParser {
+    private static final Key<ToolOutputParser> KEY = Key.create("ToolOutputParser");
+
+    /**
+     * Anchored, with possessive quantifiers only, so a line which doesn't match fails in linear time. The optional drive
+     * letter keeps Windows paths in one piece.
+     */
+    static final Pattern ourLocationPattern =
+            Pattern.compile("^((?:[A-Za-z]:)?[^:]++)(?::(\\d++)(?::(\\d++))?)?(?::|(?<=\\d) )");
+
+    private final Map<String, Boolean> myExistingPaths = new HashMap<String, Boolean>();
+
+    private ToolOutputParser() {
+    }
+
+    /**
+     * Returns the parser of the make the context belongs to.
+     */
+    @NotNull
+    static synchronized ToolOutputParser getInstance(@NotNull CompileContext context) {
+        ToolOutputParser parser = context.getUserData(KEY);
+        if (parser == null) {
+            parser = new ToolOutputParser();
+            context.putUserData(KEY, parser);
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the location the line refers to, or null if there is none.
+     */
+    @Nullable
+    Location parse(@NotNull String line) {
+        Matcher matcher = ourLocationPattern.matcher(line);
+        if (!matcher.lookingAt()) return null;
+        String path = matcher.group(1);
+        if (!exists(path)) return null;
+        String lineNumber = matcher.group(2);
+        String column = matcher.group(3);
+        return new Location("file://" + path.replace(File.separatorChar, '/'),
+                lineNumber != null ? Integer.parseInt(lineNumber) : -1,
+                column != null ? Integer.parseInt(column) : -1);
+    }
+
+    private synchronized boolean exists(String path) {
+        Boolean exists = myExistingPaths.get(path);
+        if (exists == null) {
+            exists = new File(path).exists();
+            myExistingPaths.put(path, exists);
+        }
+        return exists;
+    }
+
+    static final class Location {
+        private final String myUrl;
+        private final int myLine;
+        private final int myColumn;
+
+        private Location(String url, int line, int column) {
+            myUrl = url;
+            myLine = line;
+            myColumn = column;
+        }
+
+        @NotNull
+        String getUrl() {
+            return myUrl;
+        }
+
+        int getLine() {
+            return myLine;
+        }
+
+        int getColumn() {
+            return myColumn;
+        }
+    }
+}
@@ -17,10 +17,25 @@ public class AndroidApkBuilder {
     @NonNls
     public static final String TOOL = "apkbuilder";
 
+    /**
+     * Merges classes.dex into the resource package and signs it with the debug key. Unless tools are configured to
+     * run as separate processes, this is done in-process once the debug keystore exists.
+     */
     public static Map<CompilerMessageCategory, List<String>> execute(String sdkPath,
                                                                      String apkPath,
                                                                      String dexPath,
                                                                      String outputPath) throws IOException {
+        if (!ExternalCompilerTool.isForkMode() && InProcessApkBuilder.isAvailable()) {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Map<CompilerMessageCategory, List<String>> messages = InProcessApkBuilder.build(apkPath, dexPath, outputPath);
+                failed = false;
+                return messages;
+            } finally {
+                ToolMetrics.getInstance().record(TOOL, start, false, failed);
+            }
+        }
         final Map<CompilerMessageCategory, List<String>> messages = ExternalCompilerTool.execute(buildToolPath(sdkPath),
                 outputPath,
                 "-z", apkPath,
@@ -3,10 +3,13 @@ package org.jetbrains.android.compiler.tools;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.android.AndroidManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -42,7 +45,19 @@ public final class AndroidApt {
                                                                               String sdkPath,
                                                                               String resourceDir,
                                                                               String outputPath) throws IOException {
-        return ExternalCompilerTool.execute(
+        return packageResources(rootDirPath, sdkPath, resourceDir, outputPath, null);
+    }
+
+    /**
+     * Packages the resources, also generating R.java into the given directory if it isn't null.
+     */
+    @NotNull
+    public static Map<CompilerMessageCategory, List<String>> packageResources(String rootDirPath,
+                                                                              String sdkPath,
+                                                                              String resourceDir,
+                                                                              String outputPath,
+                                                                              @Nullable String rJavaDir) throws IOException {
+        List<String> command = new ArrayList<String>(Arrays.asList(
                 buildToolPath(sdkPath),
                 "package",
                 "-f",     // force overwrite of existing files
@@ -50,7 +65,13 @@ public final class AndroidApt {
                 "-M", buildManifestPath(rootDirPath),
                 "-S", resourceDir,
                 "-I", buildJarPath(sdkPath),
-                "-F", outputPath);
+                "-F", outputPath));
+        if (rJavaDir != null) {
+            command.add("-m");
+            command.add("-J");
+            command.add(rJavaDir);
+        }
+        return ExternalCompilerTool.execute(command.toArray(new String[command.size()]));
     }
 
     private static String buildToolPath(String sdkPath) {
@@ -61,7 +82,10 @@ public final class AndroidApt {
         return rootDirPath + File.separator + AndroidManager.MANIFEST_FILE_NAME;
     }
 
-    private static String buildJarPath(String sdkPath) {
+    /**
+     * Returns the path of the platform jar aapt links resources against.
+     */
+    public static String buildJarPath(String sdkPath) {
         return sdkPath + File.separator + "android.jar";
     }
 
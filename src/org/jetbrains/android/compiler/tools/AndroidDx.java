@@ -5,10 +5,13 @@ import com.intellij.openapi.util.SystemInfo;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Dx tool.
@@ -18,20 +21,260 @@ import java.util.Map;
 public final class AndroidDx {
     @NonNls
     public static final String TOOL = "dx";
+    @NonNls
+    static final String DEX_MERGER_CLASS = "com.android.dx.merge.DexMerger";
+    @NonNls
+    static final String DX_MAIN_CLASS = "com.android.dx.command.Main";
+    @NonNls
+    private static final String DEXER_MAIN_CLASS = "com.android.dx.command.dexer.Main";
+    @NonNls
+    private static final String POSITIONS_OPTION = "--positions=lines";
+    @NonNls
+    private static final String NO_STRICT_OPTION = "--no-strict";
+
+    /**
+     * dx.jar path -> options of its dexer, cached while dx.jar doesn't change.
+     */
+    private static final Map<String, DexerOptions> ourDexerOptions = new HashMap<String, DexerOptions>();
 
     private AndroidDx() {
     }
 
     @NotNull
-    public static Map<CompilerMessageCategory, List<String>> dex(String sdkPath, String classesDir) throws IOException {
-        return ExternalCompilerTool.execute(
-                sdkPath + File.separator + "tools" + File.separator + TOOL,
-                SystemInfo.isWindows ? "" : "-JXmx384M",
-                "--dex",
-                "--output=" + classesDir + File.separatorChar + "classes.dex",
-//                "--locals=full",
-                "--positions=lines",
-                classesDir
-        );
+    public static Map<CompilerMessageCategory, List<String>> dex(String sdkPath, String classesDir, DxOptions options,
+                                                                 boolean inProcess) throws IOException {
+        options = options.resolve(options.isAuto() ? countClasses(Collections.singletonList(classesDir)) : 0);
+        List<String> args = new ArrayList<String>();
+        args.add("--dex");
+        args.add("--output=" + classesDir + File.separatorChar + "classes.dex");
+//        args.add("--locals=full");
+        args.add(POSITIONS_OPTION);
+        args.addAll(options.getDexArgs(sdkPath));
+        args.add(classesDir);
+        return runDx(sdkPath, options, inProcess, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Converts the given class files, directories or jars into a single dex file. Class files given one by one aren't
+     * relative to a classpath root, so dx is told not to check their paths against their class names.
+     */
+    @NotNull
+    public static Map<CompilerMessageCategory, List<String>> dexFiles(String sdkPath, String outputFile, List<String> inputs,
+                                                                      DxOptions options, boolean inProcess) throws IOException {
+        options = options.resolve(options.isAuto() ? countClasses(inputs) : 0);
+        List<String> args = new ArrayList<String>();
+        args.add("--dex");
+        args.add("--output=" + outputFile);
+        args.add(POSITIONS_OPTION);
+        args.addAll(options.getDexArgs(sdkPath));
+        for (String input : inputs) {
+            if (input.endsWith(".class")) {
+                args.add(NO_STRICT_OPTION);
+                break;
+            }
+        }
+        args.addAll(inputs);
+        return runDx(sdkPath, options, inProcess, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Returns the options {@link #dexFiles} passes to dx which determine the contents of the produced dex file.
+     */
+    @NotNull
+    public static String getDexOptions(DxOptions options) {
+        String outputOptions = options.getOutputOptions();
+        return outputOptions.length() > 0 ? POSITIONS_OPTION + " " + outputOptions : POSITIONS_OPTION;
+    }
+
+    /**
+     * Counts the classes dx would convert: class files, including those in directories, and entries of jars.
+     */
+    public static int countClasses(List<String> inputs) {
+        int count = 0;
+        for (String input : inputs) {
+            count += countClasses(new File(input));
+        }
+        return count;
+    }
+
+    private static int countClasses(File file) {
+        String name = file.getName();
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            int count = 0;
+            if (children != null) {
+                for (File child : children) {
+                    count += countClasses(child);
+                }
+            }
+            return count;
+        }
+        if (name.endsWith(".class")) {
+            return 1;
+        }
+        if (name.endsWith(".jar")) {
+            try {
+                ZipFile zipFile = new ZipFile(file);
+                try {
+                    return zipFile.size();
+                } finally {
+                    zipFile.close();
+                }
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Runs dx with the given arguments, inside the IDE process if requested and possible, otherwise as an external process.
+     * An external dx is started with the JVM options as {@code java -cp dx.jar}, which works the same on all platforms;
+     * the dx script is only used with an SDK that has no dx.jar.
+     */
+    @NotNull
+    private static Map<CompilerMessageCategory, List<String>> runDx(String sdkPath, DxOptions options, boolean inProcess,
+                                                                    String... args) throws IOException {
+        if (inProcess) {
+            InProcessDx dx = InProcessDx.getInstance(sdkPath);
+            if (dx != null) {
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    Map<CompilerMessageCategory, List<String>> messages = dx.dex(args);
+                    failed = !messages.get(CompilerMessageCategory.ERROR).isEmpty();
+                    return messages;
+                } finally {
+                    ToolMetrics.getInstance().record(TOOL, start, false, failed);
+                }
+            }
+        }
+        List<String> command = new ArrayList<String>();
+        String dxJarPath = getDxJarPath(sdkPath);
+        if (new File(dxJarPath).isFile()) {
+            addJavaCommand(command, options, dxJarPath, DX_MAIN_CLASS);
+        } else {
+            command.add(sdkPath + File.separator + "tools" + File.separator + TOOL);
+            if (!SystemInfo.isWindows) {
+                command.add("-JXmx" + options.getHeapSize() + "M");
+            }
+        }
+        command.addAll(Arrays.asList(args));
+        return ExternalCompilerTool.execute(command.toArray(new String[command.size()]));
+    }
+
+    private static void addJavaCommand(List<String> command, DxOptions options, String dxJarPath, String mainClass) {
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Xmx" + options.getHeapSize() + "M");
+        command.addAll(options.getJvmOptions());
+        command.add("-cp");
+        command.add(dxJarPath);
+        command.add(mainClass);
+    }
+
+    /**
+     * Merges dex files produced by {@link #dexFiles} into one. Requires a dx.jar which contains the dex merger.
+     */
+    @NotNull
+    public static Map<CompilerMessageCategory, List<String>> merge(String sdkPath, String outputFile, List<String> dexFiles,
+                                                                   DxOptions options, boolean inProcess) throws IOException {
+        if (inProcess) {
+            InProcessDx dx = InProcessDx.getInstance(sdkPath);
+            if (dx != null) {
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    Map<CompilerMessageCategory, List<String>> messages = dx.merge(outputFile, dexFiles);
+                    failed = !messages.get(CompilerMessageCategory.ERROR).isEmpty();
+                    return messages;
+                } finally {
+                    ToolMetrics.getInstance().record(TOOL, start, false, failed);
+                }
+            }
+        }
+        List<String> command = new ArrayList<String>();
+        addJavaCommand(command, options, getDxJarPath(sdkPath), DEX_MERGER_CLASS);
+        command.add(outputFile);
+        command.addAll(dexFiles);
+        return ExternalCompilerTool.execute(command.toArray(new String[command.size()]));
+    }
+
+    /**
+     * Checks whether dx.jar of the SDK contains the dex merger (older SDKs don't have it).
+     */
+    public static boolean isMergeSupported(String sdkPath) {
+        File dxJar = new File(getDxJarPath(sdkPath));
+        if (!dxJar.isFile()) return false;
+        try {
+            ZipFile zipFile = new ZipFile(dxJar);
+            try {
+                return zipFile.getEntry(DEX_MERGER_CLASS.replace('.', '/') + ".class") != null;
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the dexer of the SDK dx.jar knows the given command line option. Options are string constants of
+     * the dexer main class, so its class file is looked up instead of running dx.
+     */
+    static boolean isDexOptionSupported(String sdkPath, String option) {
+        File dxJar = new File(getDxJarPath(sdkPath));
+        if (!dxJar.isFile()) return false;
+        String key = dxJar.getAbsolutePath();
+        synchronized (ourDexerOptions) {
+            DexerOptions options = ourDexerOptions.get(key);
+            if (options == null || options.myJarTimestamp != dxJar.lastModified()) {
+                options = new DexerOptions(dxJar.lastModified(), readDexerClass(dxJar));
+                ourDexerOptions.put(key, options);
+            }
+            return options.myClassContent.contains(option);
+        }
+    }
+
+    @NotNull
+    private static String readDexerClass(File dxJar) {
+        try {
+            ZipFile zipFile = new ZipFile(dxJar);
+            try {
+                ZipEntry entry = zipFile.getEntry(DEXER_MAIN_CLASS.replace('.', '/') + ".class");
+                if (entry == null) return "";
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                InputStream is = zipFile.getInputStream(entry);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = is.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    is.close();
+                }
+                // option names are ASCII, so a single-byte charset keeps them intact
+                return out.toString("ISO-8859-1");
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    @NotNull
+    public static String getDxJarPath(String sdkPath) {
+        return sdkPath + File.separator + "tools" + File.separator + "lib" + File.separator + "dx.jar";
+    }
+
+    private static final class DexerOptions {
+        private final long myJarTimestamp;
+        private final String myClassContent;
+
+        private DexerOptions(long jarTimestamp, String classContent) {
+            myJarTimestamp = jarTimestamp;
+            myClassContent = classContent;
+        }
     }
 }
\ No newline at end of file
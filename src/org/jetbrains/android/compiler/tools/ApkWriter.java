@@ -0,0 +1,173 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes zip entries to a file channel from its start. Entries of another archive are copied as they are, without
+ * inflating and deflating them again; new entries are deflated in memory. {@link #finish()} writes the central
+ * directory of everything written so far.
+ *
+ * @author Alexey Efimov
+ */
+final class ApkWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int VERSION_NEEDED = 20;
+
+    private final FileChannel myChannel;
+    private final OutputStream myStream;
+    private final List<ZipEntryRecord> myEntries = new ArrayList<ZipEntryRecord>();
+    private final int myDosTime = toDosTime(System.currentTimeMillis());
+    private long myOffset;
+
+    ApkWriter(@NotNull FileChannel channel) throws IOException {
+        myChannel = channel;
+        myChannel.position(0);
+        myStream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+    }
+
+    /**
+     * Copies the compressed data of an entry of another archive.
+     */
+    @NotNull
+    ZipEntryRecord copy(@NotNull FileChannel source, @NotNull ZipEntryRecord entry) throws IOException {
+        ZipEntryRecord written = entry.moveTo(myOffset);
+        writeLocalHeader(written);
+        myStream.flush();
+        long position = entry.getDataOffset(source);
+        long remaining = entry.myCompressedSize;
+        while (remaining > 0) {
+            long transferred = source.transferTo(position, remaining, myChannel);
+            if (transferred <= 0) {
+                throw new IOException("Cannot copy " + entry.myName);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        myOffset += entry.myCompressedSize;
+        myEntries.add(written);
+        return written;
+    }
+
+    /**
+     * Adds a new entry, deflating its content.
+     */
+    @NotNull
+    ZipEntryRecord add(@NotNull String name, @NotNull byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] compressed = deflate(data);
+        ZipEntryRecord entry = new ZipEntryRecord(name, ZipEntryRecord.UTF8_FLAG, ZipEntryRecord.DEFLATED, myDosTime,
+                crc.getValue(), compressed.length, data.length, myOffset);
+        writeLocalHeader(entry);
+        myStream.write(compressed);
+        myOffset += compressed.length;
+        myEntries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Writes the central directory and truncates whatever followed it in the file; returns the written entries.
+     */
+    @NotNull
+    List<ZipEntryRecord> finish() throws IOException {
+        long directoryOffset = myOffset;
+        for (ZipEntryRecord entry : myEntries) {
+            writeInt(ZipEntryRecord.CENTRAL_HEADER_SIGNATURE);
+            writeShort(VERSION_NEEDED);
+            writeShort(VERSION_NEEDED);
+            writeShort(entry.myFlags);
+            writeShort(entry.myMethod);
+            writeInt(entry.myDosTime);
+            writeInt((int) entry.myCrc);
+            writeInt((int) entry.myCompressedSize);
+            writeInt((int) entry.mySize);
+            writeShort(entry.myNameBytes.length);
+            writeShort(0); // extra
+            writeShort(0); // comment
+            writeShort(0); // disk
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt((int) entry.myLocalHeaderOffset);
+            write(entry.myNameBytes);
+        }
+        long directorySize = myOffset - directoryOffset;
+        writeInt(ZipEntryRecord.END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(myEntries.size());
+        writeShort(myEntries.size());
+        writeInt((int) directorySize);
+        writeInt((int) directoryOffset);
+        writeShort(0);
+        myStream.flush();
+        myChannel.truncate(myOffset);
+        return myEntries;
+    }
+
+    private void writeLocalHeader(ZipEntryRecord entry) throws IOException {
+        writeInt(ZipEntryRecord.LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION_NEEDED);
+        writeShort(entry.myFlags);
+        writeShort(entry.myMethod);
+        writeInt(entry.myDosTime);
+        writeInt((int) entry.myCrc);
+        writeInt((int) entry.myCompressedSize);
+        writeInt((int) entry.mySize);
+        writeShort(entry.myNameBytes.length);
+        writeShort(0);
+        write(entry.myNameBytes);
+    }
+
+    private void writeShort(int value) throws IOException {
+        myStream.write(value);
+        myStream.write(value >>> 8);
+        myOffset += 2;
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xffff);
+        writeShort(value >>> 16);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        myStream.write(bytes);
+        myOffset += bytes.length;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(BUFFER_SIZE, data.length / 2)];
+            ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 |
+                calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+                calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -0,0 +1,348 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Timeline of one make: when every module went through every build stage and every tool invocation made on its
+ * behalf, whether the tool was a separate process and how many bytes the stage produced. The trace is written in the
+ * Chrome trace event format (chrome://tracing), with per-module, per-stage and per-tool totals in "otherData".
+ * <p/>
+ * Tool invocations and outputs are attributed to the module and stage of the {@link Scope} of the current thread.
+ *
+ * @author Alexey Efimov
+ */
+public final class BuildTrace {
+    @NonNls
+    private static final String TRACES_DIR = "android" + File.separator + "build-traces";
+    private static final int MAX_TRACES = 20;
+    @NonNls
+    private static final String STAGE_CATEGORY = "stage";
+    @NonNls
+    private static final String TOOL_CATEGORY = "tool";
+    @NonNls
+    private static final String OUTPUT_CATEGORY = "output";
+
+    private static final ThreadLocal<Scope> ourScope = new ThreadLocal<Scope>();
+
+    private final File myFile;
+    private final long myStartMillis = System.currentTimeMillis();
+    private final long myOriginNanos = System.nanoTime();
+    private final List<Event> myEvents = new ArrayList<Event>();
+    private final Map<Long, String> myThreadNames = new TreeMap<Long, String>();
+
+    private BuildTrace(@NotNull File file) {
+        myFile = file;
+    }
+
+    /**
+     * Creates the trace of a new make in the IDE system directory, removing the oldest traces of the project.
+     */
+    @NotNull
+    public static BuildTrace create(@NotNull String projectName) {
+        File dir = new File(PathManager.getSystemPath(), TRACES_DIR);
+        String prefix = FileUtil.sanitizeFileName(projectName) + "-";
+        File[] traces = dir.listFiles();
+        if (traces != null) {
+            List<File> projectTraces = new ArrayList<File>();
+            for (File trace : traces) {
+                if (trace.getName().startsWith(prefix)) {
+                    projectTraces.add(trace);
+                }
+            }
+            // names end with the time of the make, so they sort chronologically
+            Collections.sort(projectTraces);
+            for (int i = 0; i <= projectTraces.size() - MAX_TRACES; i++) {
+                FileUtil.delete(projectTraces.get(i));
+            }
+        }
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        return new BuildTrace(new File(dir, prefix + time + ".json"));
+    }
+
+    @NotNull
+    public File getFile() {
+        return myFile;
+    }
+
+    @Nullable
+    public static Scope getScope() {
+        return ourScope.get();
+    }
+
+    /**
+     * Sets the scope of the current thread; pass null to remove it.
+     */
+    public static void setScope(@Nullable Scope scope) {
+        if (scope != null) {
+            ourScope.set(scope);
+        } else {
+            ourScope.remove();
+        }
+    }
+
+    @NotNull
+    public Scope createScope(@NotNull String module, @NotNull String stage) {
+        return new Scope(this, module, stage);
+    }
+
+    /**
+     * Records that the module spent the given time in the stage; a module may be recorded several times per stage.
+     */
+    public void addStage(@NotNull String stage, @NotNull String module, long startNanos, long endNanos) {
+        add(new Event(stage, STAGE_CATEGORY, module, stage, startNanos, endNanos, false, false));
+    }
+
+    /**
+     * Records a tool invocation in the scope of the current thread, if there is one.
+     */
+    static void addTool(@NotNull String tool, long startNanos, long endNanos, boolean process, boolean failed) {
+        Scope scope = ourScope.get();
+        if (scope != null) {
+            Event event = new Event(tool, TOOL_CATEGORY, scope.myModule, scope.myStage, startNanos, endNanos, process, failed);
+            synchronized (scope.myTrace) {
+                scope.myLastTools.put(event.myThreadId, event);
+                scope.myTrace.add(event);
+            }
+        }
+    }
+
+    /**
+     * Records a file produced in the scope of the current thread. Its size is counted for the stage and for the last
+     * tool invoked by the thread in the scope.
+     */
+    public static void addOutput(@NotNull File file) {
+        Scope scope = ourScope.get();
+        if (scope != null && file.isFile()) {
+            long now = System.nanoTime();
+            Event event = new Event(file.getName(), OUTPUT_CATEGORY, scope.myModule, scope.myStage, now, now, false, false);
+            event.myBytes = file.length();
+            synchronized (scope.myTrace) {
+                Event lastTool = scope.myLastTools.get(event.myThreadId);
+                if (lastTool != null) {
+                    lastTool.myBytes += event.myBytes;
+                }
+                scope.myTrace.add(event);
+            }
+        }
+    }
+
+    /**
+     * Records the file like {@link #addOutput(File)} if its time stamp differs from the one taken before the tool
+     * ran, so an output the tool found up to date isn't counted.
+     */
+    public static void addOutput(@NotNull File file, long lastModified) {
+        if (file.lastModified() != lastModified) {
+            addOutput(file);
+        }
+    }
+
+    private synchronized void add(Event event) {
+        myEvents.add(event);
+        Thread thread = Thread.currentThread();
+        myThreadNames.put(thread.getId(), thread.getName());
+    }
+
+    /**
+     * Writes the events recorded so far, replacing the previous contents of the trace file.
+     */
+    public synchronized void write() throws IOException {
+        FileUtil.createParentDirs(myFile);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(myFile), "UTF-8"));
+        try {
+            writer.write("{\"traceEvents\":[");
+            boolean first = true;
+            for (Map.Entry<Long, String> entry : myThreadNames.entrySet()) {
+                first = separate(writer, first);
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey() +
+                        ",\"args\":{\"name\":" + quote(entry.getValue()) + "}}");
+            }
+            for (Event event : myEvents) {
+                first = separate(writer, first);
+                boolean output = OUTPUT_CATEGORY.equals(event.myCategory);
+                writer.write("{\"name\":" + quote(event.myName) + ",\"cat\":\"" + event.myCategory + "\"" +
+                        (output ? ",\"ph\":\"i\",\"s\":\"t\"" : ",\"ph\":\"X\",\"dur\":" + toMicros(event.getLength())) +
+                        ",\"ts\":" + toMicros(event.myStart - myOriginNanos) + ",\"pid\":1,\"tid\":" + event.myThreadId +
+                        ",\"args\":{\"module\":" + quote(event.myModule) + ",\"stage\":" + quote(event.myStage));
+                if (TOOL_CATEGORY.equals(event.myCategory)) {
+                    writer.write(",\"process\":" + event.myProcess + ",\"failed\":" + event.myFailed +
+                            ",\"bytes\":" + event.myBytes);
+                }
+                else if (output) {
+                    writer.write(",\"bytes\":" + event.myBytes);
+                }
+                writer.write("}}");
+            }
+            writer.write("],\"displayTimeUnit\":\"ms\",\"otherData\":{\"startTime\":" + myStartMillis);
+            writer.write(",\"modules\":");
+            writeTotals(writer, getModuleTotals());
+            writer.write(",\"tools\":");
+            writeTotals(writer, getToolTotals());
+            writer.write("}}");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Module -> stage -> totals: time and number of the module's stage events, processes started and bytes produced
+     * in the stage.
+     */
+    private Map<String, Map<String, Totals>> getModuleTotals() {
+        Map<String, Map<String, Totals>> result = new TreeMap<String, Map<String, Totals>>();
+        for (Event event : myEvents) {
+            Totals totals = getTotals(result, event.myModule, event.myStage);
+            if (STAGE_CATEGORY.equals(event.myCategory)) {
+                totals.myNanos += event.getLength();
+                totals.myRuns++;
+            }
+            else if (OUTPUT_CATEGORY.equals(event.myCategory)) {
+                totals.myBytes += event.myBytes;
+            }
+            else if (event.myProcess) {
+                totals.myProcesses++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tool -> "all" -> totals of its invocations.
+     */
+    private Map<String, Map<String, Totals>> getToolTotals() {
+        Map<String, Map<String, Totals>> result = new TreeMap<String, Map<String, Totals>>();
+        for (Event event : myEvents) {
+            if (!TOOL_CATEGORY.equals(event.myCategory)) continue;
+            Totals totals = getTotals(result, event.myName, "all");
+            totals.myRuns++;
+            totals.myNanos += event.getLength();
+            totals.myBytes += event.myBytes;
+            if (event.myProcess) {
+                totals.myProcesses++;
+            }
+        }
+        return result;
+    }
+
+    private static Totals getTotals(Map<String, Map<String, Totals>> map, String key, String subKey) {
+        Map<String, Totals> subMap = map.get(key);
+        if (subMap == null) {
+            subMap = new TreeMap<String, Totals>();
+            map.put(key, subMap);
+        }
+        Totals totals = subMap.get(subKey);
+        if (totals == null) {
+            totals = new Totals();
+            subMap.put(subKey, totals);
+        }
+        return totals;
+    }
+
+    private static void writeTotals(Writer writer, Map<String, Map<String, Totals>> totals) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Totals>> entry : totals.entrySet()) {
+            first = separate(writer, first);
+            writer.write(quote(entry.getKey()) + ":{");
+            boolean firstSub = true;
+            for (Map.Entry<String, Totals> subEntry : entry.getValue().entrySet()) {
+                firstSub = separate(writer, firstSub);
+                Totals value = subEntry.getValue();
+                writer.write(quote(subEntry.getKey()) + ":{\"runs\":" + value.myRuns + ",\"ms\":" + value.myNanos / 1000000 +
+                        ",\"processes\":" + value.myProcesses + ",\"bytes\":" + value.myBytes + "}");
+            }
+            writer.write('}');
+        }
+        writer.write('}');
+    }
+
+    private static boolean separate(Writer writer, boolean first) throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        return false;
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private static String quote(String s) {
+        StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            }
+            else if (c < ' ') {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Module and stage the current thread works for.
+     */
+    public static final class Scope {
+        private final BuildTrace myTrace;
+        private final String myModule;
+        private final String myStage;
+        /**
+         * Thread id to the last tool invoked by the thread, guarded by the trace.
+         */
+        private final Map<Long, Event> myLastTools = new HashMap<Long, Event>();
+
+        private Scope(BuildTrace trace, String module, String stage) {
+            myTrace = trace;
+            myModule = module;
+            myStage = stage;
+        }
+    }
+
+    private static final class Event {
+        private final String myName;
+        private final String myCategory;
+        private final String myModule;
+        private final String myStage;
+        private final long myStart;
+        private final long myEnd;
+        private final long myThreadId = Thread.currentThread().getId();
+        private final boolean myProcess;
+        private final boolean myFailed;
+        private long myBytes;
+
+        private Event(String name, String category, String module, String stage, long start, long end, boolean process,
+                      boolean failed) {
+            myName = name;
+            myCategory = category;
+            myModule = module;
+            myStage = stage;
+            myStart = start;
+            myEnd = end;
+            myProcess = process;
+            myFailed = failed;
+        }
+
+        long getLength() {
+            return myEnd - myStart;
+        }
+    }
+
+    private static final class Totals {
+        private int myRuns;
+        private long myNanos;
+        private int myProcesses;
+        private long myBytes;
+    }
+}
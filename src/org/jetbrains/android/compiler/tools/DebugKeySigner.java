@@ -0,0 +1,215 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.*;
+import java.security.cert.X509Certificate;
+
+/**
+ * Signs packages with the debug key of the SDK, the same one apkbuilder uses. The key is loaded from the debug
+ * keystore once and cached while the keystore file doesn't change. The PKCS#7 signature block is DER-encoded here
+ * rather than with the JDK internal classes jarsigner uses.
+ *
+ * @author Alexey Efimov
+ */
+final class DebugKeySigner {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.tools.DebugKeySigner");
+
+    @NonNls
+    private static final String KEYSTORE_TYPE = "JKS";
+    @NonNls
+    private static final String KEYSTORE_PASSWORD = "android";
+    @NonNls
+    private static final String KEY_ALIAS = "androiddebugkey";
+    @NonNls
+    private static final String KEY_PASSWORD = "android";
+    @NonNls
+    private static final String DIGEST_ALGORITHM = "SHA1";
+    @NonNls
+    private static final String SHA1_OID = "1.3.14.3.2.26";
+    @NonNls
+    private static final String RSA_OID = "1.2.840.113549.1.1.1";
+    @NonNls
+    private static final String DSA_OID = "1.2.840.10040.4.1";
+    @NonNls
+    private static final String DATA_OID = "1.2.840.113549.1.7.1";
+    @NonNls
+    private static final String SIGNED_DATA_OID = "1.2.840.113549.1.7.2";
+
+    private static final int DER_INTEGER = 0x02;
+    private static final int DER_OCTET_STRING = 0x04;
+    private static final int DER_NULL = 0x05;
+    private static final int DER_OID = 0x06;
+    private static final int DER_SEQUENCE = 0x30;
+    private static final int DER_SET = 0x31;
+    private static final int DER_CONTEXT_0 = 0xa0;
+
+    private static DebugKeySigner ourInstance;
+
+    private final File myKeystore;
+    private final long myKeystoreTimestamp;
+    private final PrivateKey myKey;
+    private final X509Certificate myCertificate;
+
+    private DebugKeySigner(File keystore, long keystoreTimestamp, PrivateKey key, X509Certificate certificate) {
+        myKeystore = keystore;
+        myKeystoreTimestamp = keystoreTimestamp;
+        myKey = key;
+        myCertificate = certificate;
+    }
+
+    /**
+     * Returns the signer, or null if there is no debug keystore yet (apkbuilder creates it on its first run) or it
+     * can't be read.
+     */
+    @Nullable
+    static synchronized DebugKeySigner getInstance() {
+        File keystore = getDebugKeystore();
+        if (ourInstance != null && ourInstance.myKeystore.equals(keystore) &&
+                ourInstance.myKeystoreTimestamp == keystore.lastModified()) {
+            return ourInstance;
+        }
+        ourInstance = null;
+        if (!keystore.isFile()) return null;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+            InputStream is = new FileInputStream(keystore);
+            try {
+                keyStore.load(is, KEYSTORE_PASSWORD.toCharArray());
+            } finally {
+                is.close();
+            }
+            PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEY_PASSWORD.toCharArray());
+            X509Certificate certificate = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+            if (key != null && certificate != null) {
+                ourInstance = new DebugKeySigner(keystore, keystore.lastModified(), key, certificate);
+            }
+        } catch (Exception e) {
+            LOG.info("Cannot load debug key from " + keystore.getPath(), e);
+        }
+        return ourInstance;
+    }
+
+    @NotNull
+    File getKeystore() {
+        return myKeystore;
+    }
+
+    /**
+     * Name of the signature block entry: META-INF/CERT.RSA for an RSA key.
+     */
+    @NotNull
+    String getBlockExtension() {
+        return myKey.getAlgorithm();
+    }
+
+    /**
+     * Signs the given signature file and returns the PKCS#7 signature block: a SignedData with detached content, the
+     * certificate of the key and one SignerInfo without authenticated attributes, as jarsigner writes it.
+     */
+    @NotNull
+    byte[] sign(@NotNull byte[] signatureFile) throws IOException {
+        byte[] keyAlgorithm;
+        if ("RSA".equals(myKey.getAlgorithm())) {
+            keyAlgorithm = der(DER_SEQUENCE, oid(RSA_OID), der(DER_NULL));
+        }
+        else if ("DSA".equals(myKey.getAlgorithm())) {
+            keyAlgorithm = der(DER_SEQUENCE, oid(DSA_OID));
+        }
+        else {
+            throw new IOException("Unsupported debug key algorithm: " + myKey.getAlgorithm());
+        }
+        byte[] signed;
+        byte[] certificate;
+        try {
+            Signature signature = Signature.getInstance(DIGEST_ALGORITHM + "with" + myKey.getAlgorithm());
+            signature.initSign(myKey);
+            signature.update(signatureFile);
+            signed = signature.sign();
+            certificate = myCertificate.getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.toString());
+        }
+        byte[] digestAlgorithm = der(DER_SEQUENCE, oid(SHA1_OID), der(DER_NULL));
+        byte[] signerInfo = der(DER_SEQUENCE,
+                der(DER_INTEGER, new byte[]{1}),
+                der(DER_SEQUENCE, myCertificate.getIssuerX500Principal().getEncoded(),
+                        der(DER_INTEGER, myCertificate.getSerialNumber().toByteArray())),
+                digestAlgorithm,
+                keyAlgorithm,
+                der(DER_OCTET_STRING, signed));
+        byte[] signedData = der(DER_SEQUENCE,
+                der(DER_INTEGER, new byte[]{1}),
+                der(DER_SET, digestAlgorithm),
+                der(DER_SEQUENCE, oid(DATA_OID)),
+                der(DER_CONTEXT_0, certificate),
+                der(DER_SET, signerInfo));
+        return der(DER_SEQUENCE, oid(SIGNED_DATA_OID), der(DER_CONTEXT_0, signedData));
+    }
+
+    /**
+     * Encodes a DER value of the tag, the contents are concatenated.
+     */
+    @NotNull
+    private static byte[] der(int tag, @NotNull byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        }
+        else {
+            int lengthBytes = (39 - Integer.numberOfLeadingZeros(length)) / 8;
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(length >> (8 * i));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    @NotNull
+    private static byte[] oid(@NotNull String oid) {
+        String[] components = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(40 * Integer.parseInt(components[0]) + Integer.parseInt(components[1]));
+        for (int i = 2; i < components.length; i++) {
+            long value = Long.parseLong(components[i]);
+            int groups = 1;
+            while (value >> (7 * groups) != 0) {
+                groups++;
+            }
+            for (int group = groups - 1; group >= 0; group--) {
+                int bits = (int) (value >> (7 * group)) & 0x7f;
+                out.write(group > 0 ? bits | 0x80 : bits);
+            }
+        }
+        return der(DER_OID, out.toByteArray());
+    }
+
+    /**
+     * Location of the debug keystore, ~/.android/debug.keystore unless ANDROID_SDK_HOME points elsewhere.
+     */
+    @NotNull
+    private static File getDebugKeystore() {
+        String home = System.getenv("ANDROID_SDK_HOME");
+        if (home == null) {
+            home = System.getProperty("user.home");
+        }
+        return new File(home, ".android" + File.separator + "debug.keystore");
+    }
+}
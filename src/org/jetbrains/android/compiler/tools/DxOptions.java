@@ -0,0 +1,96 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Settings of dx runs: JVM heap size and options, number of dx threads and whether bytecode is optimized. In automatic
+ * mode heap size and threads are chosen per run by {@link #resolve}, from the number of classes to dex.
+ *
+ * @author Alexey Efimov
+ */
+public final class DxOptions {
+    private static final int DEFAULT_HEAP_SIZE = 384;
+    private static final int MAX_AUTO_HEAP_SIZE = 1024;
+    private static final int CLASSES_PER_MEGABYTE = 16;
+    private static final int CLASSES_PER_THREAD = 2000;
+    private static final int MAX_AUTO_THREADS = 4;
+
+    @NonNls
+    static final String THREADS_OPTION = "--num-threads";
+    @NonNls
+    private static final String NO_OPTIMIZE_OPTION = "--no-optimize";
+
+    private final boolean myAuto;
+    private final int myHeapSize;
+    private final String myJvmOptions;
+    private final int myThreads;
+    private final boolean myNoOptimize;
+
+    /**
+     * @param heapSize   maximum heap size in megabytes
+     * @param jvmOptions additional JVM options separated by spaces
+     */
+    public DxOptions(boolean auto, int heapSize, @NotNull String jvmOptions, int threads, boolean noOptimize) {
+        myAuto = auto;
+        myHeapSize = heapSize;
+        myJvmOptions = jvmOptions;
+        myThreads = threads;
+        myNoOptimize = noOptimize;
+    }
+
+    public boolean isAuto() {
+        return myAuto;
+    }
+
+    /**
+     * Returns the options to dex the given number of classes with. In automatic mode the heap grows with the number of
+     * classes up to {@link #MAX_AUTO_HEAP_SIZE} megabytes and there is a thread per {@link #CLASSES_PER_THREAD}
+     * classes, up to the number of processors.
+     */
+    @NotNull
+    public DxOptions resolve(int classCount) {
+        if (!myAuto) return this;
+        int heapSize = Math.min(MAX_AUTO_HEAP_SIZE, Math.max(DEFAULT_HEAP_SIZE, 128 + classCount / CLASSES_PER_MEGABYTE));
+        int maxThreads = Math.min(MAX_AUTO_THREADS, Runtime.getRuntime().availableProcessors());
+        int threads = Math.max(1, Math.min(maxThreads, classCount / CLASSES_PER_THREAD));
+        return new DxOptions(false, heapSize, myJvmOptions, threads, myNoOptimize);
+    }
+
+    int getHeapSize() {
+        return myHeapSize;
+    }
+
+    @NotNull
+    List<String> getJvmOptions() {
+        String options = myJvmOptions.trim();
+        return options.length() > 0 ? Arrays.asList(options.split("\\s+")) : new ArrayList<String>();
+    }
+
+    /**
+     * Returns the dx arguments for these options; the thread count is only passed to a dx which knows the option.
+     */
+    @NotNull
+    List<String> getDexArgs(@NotNull String sdkPath) {
+        List<String> args = new ArrayList<String>(2);
+        if (myNoOptimize) {
+            args.add(NO_OPTIMIZE_OPTION);
+        }
+        if (myThreads > 1 && AndroidDx.isDexOptionSupported(sdkPath, THREADS_OPTION)) {
+            args.add(THREADS_OPTION + "=" + myThreads);
+        }
+        return args;
+    }
+
+    /**
+     * Returns the options which affect the contents of produced dex files.
+     */
+    @NotNull
+    String getOutputOptions() {
+        return myNoOptimize ? NO_OPTIMIZE_OPTION : "";
+    }
+}
@@ -1,19 +1,16 @@
 package org.jetbrains.android.compiler.tools;
 
-import com.intellij.execution.process.OSProcessHandler;
-import com.intellij.execution.process.ProcessAdapter;
-import com.intellij.execution.process.ProcessEvent;
-import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.ide.util.PropertiesComponent;
 import com.intellij.openapi.compiler.CompilerMessageCategory;
-import com.intellij.openapi.util.Key;
-import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.android.util.AndroidBundle;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Abstract external tool for compiler.
@@ -21,86 +18,113 @@ import java.util.*;
  * @author Alexey Efimov
  */
 public final class ExternalCompilerTool {
+    /**
+     * Application setting choosing how tools are run: "fork", "pooled" (default) or "worker".
+     */
     @NonNls
-    private static final String[] COMMAND_COM = {"command.com", "/C"};
+    public static final String EXECUTION_MODE_PROPERTY = "AndroidToolExecutionMode";
+    /**
+     * Application setting limiting the number of tool processes running at once in "pooled" and "worker" modes.
+     */
     @NonNls
-    private static final String[] CMD_EXE = {"cmd.exe", "/C"};
+    public static final String MAX_PROCESSES_PROPERTY = "AndroidMaxToolProcesses";
+
+    @NonNls
+    private static final String FORK_MODE = "fork";
+    @NonNls
+    private static final String WORKER_MODE = "worker";
+
+    private static ToolExecutor ourExecutor;
+    private static final ThreadLocal<ToolOutputListener> ourOutputListener = new ThreadLocal<ToolOutputListener>();
 
     private ExternalCompilerTool() {
     }
 
+    /**
+     * Returns the executor shared by all makes, creating it from the application settings on first use.
+     */
     @NotNull
-    protected static Map<CompilerMessageCategory, List<String>> execute(String... argv) throws IOException {
-        return performCommand(toPlatformDependedCommand(argv));
+    public static synchronized ToolExecutor getExecutor() {
+        if (ourExecutor == null) {
+            ourExecutor = createExecutor();
+        }
+        return ourExecutor;
     }
 
-    private static String[] toPlatformDependedCommand(String... argv) {
-        if (SystemInfo.isWindows) {
-            List<String> command = new ArrayList<String>();
-            command.addAll(Arrays.asList(SystemInfo.isWindows9x ? COMMAND_COM : CMD_EXE));
-            command.addAll(Arrays.asList(argv));
-            return command.toArray(new String[command.size()]);
-        }
-        return argv;
+    public static synchronized void setExecutor(@NotNull ToolExecutor executor) {
+        ourExecutor = executor;
     }
 
-    @NotNull
-    protected static Map<CompilerMessageCategory, List<String>> performCommand(String... command) throws IOException {
-        ProcessBuilder builder = new ProcessBuilder(command);
-        ProcessResult result = readProcessOutput(builder.start());
-        Map<CompilerMessageCategory, List<String>> messages = result.getMessages();
-        int code = result.getExitCode();
-        if (code != 0 && messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
-            throw new IOException(AndroidBundle.message("command.0.execution.failed.with.exit.code.1", command, code));
-        } else {
-            return messages;
-        }
+    /**
+     * Returns true if tools must be run as separate processes only, without replacing them by in-process equivalents.
+     */
+    static boolean isForkMode() {
+        return FORK_MODE.equals(PropertiesComponent.getInstance().getValue(EXECUTION_MODE_PROPERTY));
     }
 
     @NotNull
-    private static ProcessResult readProcessOutput(Process process) throws IOException {
-        OSProcessHandler handler = new OSProcessHandler(process, "");
-        final List<String> information = new ArrayList<String>();
-        final List<String> error = new ArrayList<String>();
-        handler.addProcessListener(new ProcessAdapter() {
-            public void onTextAvailable(final ProcessEvent event, final Key outputType) {
-                if (outputType == ProcessOutputTypes.STDOUT) {
-                    filter(event.getText(), information);
-                } else if (outputType == ProcessOutputTypes.STDERR) {
-                    filter(event.getText(), error);
-                }
+    private static ToolExecutor createExecutor() {
+        PropertiesComponent properties = PropertiesComponent.getInstance();
+        String mode = properties.getValue(EXECUTION_MODE_PROPERTY);
+        if (FORK_MODE.equals(mode)) {
+            return new ForkingToolExecutor();
+        }
+        int maxProcesses = Runtime.getRuntime().availableProcessors();
+        String maxProcessesValue = properties.getValue(MAX_PROCESSES_PROPERTY);
+        if (maxProcessesValue != null) {
+            try {
+                maxProcesses = Integer.parseInt(maxProcessesValue.trim());
+            } catch (NumberFormatException ignored) {
             }
-        });
-        handler.startNotify();
-        handler.waitFor();
-        int exitCode = handler.getProcess().exitValue();
-        return new ProcessResult(information, error, exitCode);
+        }
+        ToolExecutor pooled = new PooledToolExecutor(new ForkingToolExecutor(), maxProcesses);
+        if (WORKER_MODE.equals(mode)) {
+            WorkerToolExecutor executor = new WorkerToolExecutor(pooled);
+            executor.registerWorker(new InProcessDx.Worker());
+            return executor;
+        }
+        return pooled;
     }
 
-    private static void filter(@NonNls String output, @NotNull List<String> buffer) {
-        if (!StringUtil.isEmptyOrSpaces(output)) {
-            String[] lines = output.split("[\\n\\r]+");
-            buffer.addAll(Arrays.asList(lines));
+    /**
+     * Sets the listener receiving output of the tools run by the current thread; pass null to remove it.
+     */
+    public static void setOutputListener(@Nullable ToolOutputListener listener) {
+        if (listener != null) {
+            ourOutputListener.set(listener);
+        } else {
+            ourOutputListener.remove();
         }
     }
 
-    private static final class ProcessResult {
-        private final int myExitCode;
-        private final Map<CompilerMessageCategory, List<String>> myMessages;
-
-        public ProcessResult(List<String> information, List<String> error, int exitCode) {
-            myExitCode = exitCode;
-            myMessages = new HashMap<CompilerMessageCategory, List<String>>(2);
-            myMessages.put(CompilerMessageCategory.INFORMATION, information);
-            myMessages.put(CompilerMessageCategory.ERROR, error);
-        }
+    @Nullable
+    public static ToolOutputListener getOutputListener() {
+        return ourOutputListener.get();
+    }
 
-        public Map<CompilerMessageCategory, List<String>> getMessages() {
-            return myMessages;
-        }
+    @NotNull
+    protected static Map<CompilerMessageCategory, List<String>> execute(String... argv) throws IOException {
+        return performCommand(argv);
+    }
 
-        public int getExitCode() {
-            return myExitCode;
+    @NotNull
+    protected static Map<CompilerMessageCategory, List<String>> performCommand(String... command) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean forked = true;
+        try {
+            ProcessResult result = getExecutor().execute(ourOutputListener.get(), command);
+            forked = result.isForked();
+            Map<CompilerMessageCategory, List<String>> messages = result.getMessages();
+            int code = result.getExitCode();
+            if (code != 0 && messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+                throw new IOException(AndroidBundle.message("command.0.execution.failed.with.exit.code.1",
+                        StringUtil.join(command, " "), code));
+            }
+            failed = code != 0;
+            return messages;
+        } finally {
+            ToolMetrics.getInstance().record(ToolMetrics.getToolName(command), start, forked, failed);
         }
     }
 }
@@ -0,0 +1,69 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts a new process for every tool invocation.
+ *
+ * @author Alexey Efimov
+ */
+public final class ForkingToolExecutor implements ToolExecutor {
+    @NonNls
+    private static final String[] COMMAND_COM = {"command.com", "/C"};
+    @NonNls
+    private static final String[] CMD_EXE = {"cmd.exe", "/C"};
+
+    @NotNull
+    public ProcessResult execute(@Nullable ToolOutputListener listener, @NotNull String... command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(toPlatformDependedCommand(command));
+        return readProcessOutput(builder.start(), listener);
+    }
+
+    private static String[] toPlatformDependedCommand(String... argv) {
+        if (SystemInfo.isWindows) {
+            List<String> command = new ArrayList<String>();
+            command.addAll(Arrays.asList(SystemInfo.isWindows9x ? COMMAND_COM : CMD_EXE));
+            command.addAll(Arrays.asList(argv));
+            return command.toArray(new String[command.size()]);
+        }
+        return argv;
+    }
+
+    /**
+     * Reads the output while the process runs: lines are passed to the listener as soon as they are complete, and at most
+     * {@link LineCollector#MAX_RETAINED_LINES} lines per stream are kept for the result.
+     */
+    @NotNull
+    private static ProcessResult readProcessOutput(Process process, @Nullable ToolOutputListener listener) throws IOException {
+        OSProcessHandler handler = new OSProcessHandler(process, "");
+        final LineCollector information = new LineCollector(CompilerMessageCategory.INFORMATION, listener);
+        final LineCollector error = new LineCollector(CompilerMessageCategory.ERROR, listener);
+        handler.addProcessListener(new ProcessAdapter() {
+            public void onTextAvailable(final ProcessEvent event, final Key outputType) {
+                if (outputType == ProcessOutputTypes.STDOUT) {
+                    information.append(event.getText());
+                } else if (outputType == ProcessOutputTypes.STDERR) {
+                    error.append(event.getText());
+                }
+            }
+        });
+        handler.startNotify();
+        handler.waitFor();
+        int exitCode = handler.getProcess().exitValue();
+        return new ProcessResult(information.finish(), error.finish(), exitCode);
+    }
+}
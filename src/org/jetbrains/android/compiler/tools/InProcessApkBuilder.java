@@ -0,0 +1,410 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.android.AndroidManager;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Does the job of apkbuilder inside the IDE process: merges classes.dex into the resource package produced by aapt
+ * and signs the result with the debug key. Entries of the resource package are copied without recompression, and
+ * the SHA1 digests of entries which didn't change since the previous build of the same package are reused.
+ *
+ * @author Alexey Efimov
+ */
+final class InProcessApkBuilder {
+    @NonNls
+    private static final String META_INF = "META-INF/";
+    @NonNls
+    private static final String MANIFEST_NAME = META_INF + "MANIFEST.MF";
+    @NonNls
+    private static final String SIGNATURE_NAME = META_INF + "CERT.SF";
+    @NonNls
+    private static final String SIGNATURE_BLOCK_NAME = META_INF + "CERT.";
+    @NonNls
+    private static final String DIGEST_ALGORITHM = "SHA1";
+    @NonNls
+    private static final String CREATED_BY = "1.0 (Android)";
+    private static final int MAX_LINE_LENGTH = 72;
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Index of the last build of every package, keyed by output path. A package built in another session is indexed
+     * from its central directory and manifest.
+     */
+    private static final Map<String, ApkIndex> ourIndexes = new HashMap<String, ApkIndex>();
+
+    private InProcessApkBuilder() {
+    }
+
+    static boolean isAvailable() {
+        return DebugKeySigner.getInstance() != null;
+    }
+
+    /**
+     * Builds the package. If the output is the package produced by the previous build and none of its entries changed,
+     * it is only touched. Otherwise it is written from scratch into a temporary file which then replaces the output,
+     * so a failed build leaves the previous package as it was. Entries are copied raw either way, so writing the whole
+     * package costs about as much as copying the previous one would, without leaving replaced entries behind.
+     */
+    @NotNull
+    static Map<CompilerMessageCategory, List<String>> build(@NotNull String resourcePackagePath, @NotNull String dexPath,
+                                                           @NotNull String outputPath) throws IOException {
+        DebugKeySigner signer = DebugKeySigner.getInstance();
+        if (signer == null) {
+            throw new IOException("Debug keystore is not available");
+        }
+        byte[] dex = FileUtil.loadFileBytes(new File(dexPath));
+        File output = new File(outputPath);
+        ApkIndex previous;
+        synchronized (ourIndexes) {
+            previous = ourIndexes.remove(outputPath);
+        }
+        if (previous == null && output.isFile()) {
+            try {
+                previous = ApkIndex.read(output);
+            } catch (IOException e) {
+                // not a package we can index, all digests are computed again
+                previous = null;
+            }
+        }
+        if (previous != null && !previous.isValidFor(output)) {
+            previous = null;
+        }
+        ApkIndex index;
+        FileChannel source = new RandomAccessFile(resourcePackagePath, "r").getChannel();
+        try {
+            List<ZipEntryRecord> entries = new ArrayList<ZipEntryRecord>();
+            for (ZipEntryRecord entry : ZipEntryRecord.readCentralDirectory(source)) {
+                if (!isSignatureEntry(entry.myName) && !AndroidManager.CLASSES_FILE_NAME.equals(entry.myName)) {
+                    entries.add(entry);
+                }
+            }
+            Map<String, String> keys = new HashMap<String, String>(entries.size() + 1);
+            Map<String, String> digests = new HashMap<String, String>(entries.size() + 1);
+            SortedMap<String, String> entryDigests = new TreeMap<String, String>();
+            for (ZipEntryRecord entry : entries) {
+                String key = getDigestKey(entry);
+                String digest = previous != null ? previous.myDigests.get(key) : null;
+                if (digest == null) {
+                    digest = computeDigest(source, entry);
+                }
+                keys.put(entry.myName, key);
+                digests.put(key, digest);
+                entryDigests.put(entry.myName, digest);
+            }
+            String dexKey = getDexKey(dex);
+            String dexDigest = previous != null ? previous.myDigests.get(dexKey) : null;
+            if (dexDigest == null) {
+                dexDigest = base64(createDigest().digest(dex));
+            }
+            keys.put(AndroidManager.CLASSES_FILE_NAME, dexKey);
+            digests.put(dexKey, dexDigest);
+            entryDigests.put(AndroidManager.CLASSES_FILE_NAME, dexDigest);
+
+            if (previous != null && previous.myKeys.equals(keys)) {
+                // nothing to write, but the package has to look newer than its inputs
+                if (!output.setLastModified(System.currentTimeMillis())) {
+                    throw new IOException("Cannot write " + output.getPath());
+                }
+                index = previous.touched(output);
+            }
+            else {
+                index = write(output, source, entries, dex, keys, digests, entryDigests, signer);
+            }
+        } finally {
+            source.close();
+        }
+        synchronized (ourIndexes) {
+            ourIndexes.put(outputPath, index);
+        }
+        Map<CompilerMessageCategory, List<String>> messages = new HashMap<CompilerMessageCategory, List<String>>(2);
+        messages.put(CompilerMessageCategory.INFORMATION,
+                new ArrayList<String>(Collections.singletonList("Using keystore: " + signer.getKeystore().getPath())));
+        messages.put(CompilerMessageCategory.ERROR, new ArrayList<String>());
+        return messages;
+    }
+
+    @NotNull
+    private static ApkIndex write(File output, FileChannel source, List<ZipEntryRecord> entries, byte[] dex,
+                                  Map<String, String> keys, Map<String, String> digests,
+                                  SortedMap<String, String> entryDigests, DebugKeySigner signer) throws IOException {
+        File temp = getTempFile(output);
+        try {
+            FileChannel target = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                ApkWriter writer = new ApkWriter(target);
+                writeSignature(writer, signer, entryDigests);
+                for (ZipEntryRecord entry : entries) {
+                    writer.copy(source, entry);
+                }
+                writer.add(AndroidManager.CLASSES_FILE_NAME, dex);
+                writer.finish();
+            } finally {
+                target.close();
+            }
+            replace(output, temp);
+        } finally {
+            FileUtil.delete(temp);
+        }
+        return new ApkIndex(output, keys, digests);
+    }
+
+    @NotNull
+    private static File getTempFile(File output) {
+        File temp = new File(output.getPath() + ".part");
+        FileUtil.delete(temp);
+        return temp;
+    }
+
+    private static void replace(File output, File temp) throws IOException {
+        if (output.exists() && !output.delete() || !temp.renameTo(output)) {
+            throw new IOException("Cannot write " + output.getPath());
+        }
+    }
+
+    /**
+     * Writes the manifest with entry digests, the signature file with digests of the manifest sections and the
+     * signature block, the way jarsigner lays them out.
+     */
+    private static void writeSignature(ApkWriter writer, DebugKeySigner signer, SortedMap<String, String> entryDigests)
+            throws IOException {
+        MessageDigest digest = createDigest();
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", CREATED_BY);
+        newLine(manifest);
+        ByteArrayOutputStream sections = new ByteArrayOutputStream();
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> entry : entryDigests.entrySet()) {
+            section.reset();
+            writeAttribute(section, "Name", entry.getKey());
+            writeAttribute(section, DIGEST_ALGORITHM + "-Digest", entry.getValue());
+            newLine(section);
+            section.writeTo(manifest);
+
+            writeAttribute(sections, "Name", entry.getKey());
+            writeAttribute(sections, DIGEST_ALGORITHM + "-Digest", base64(digest.digest(section.toByteArray())));
+            newLine(sections);
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", CREATED_BY);
+        writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest", base64(digest.digest(manifestBytes)));
+        newLine(signatureFile);
+        sections.writeTo(signatureFile);
+        byte[] signatureBytes = signatureFile.toByteArray();
+
+        writer.add(MANIFEST_NAME, manifestBytes);
+        writer.add(SIGNATURE_NAME, signatureBytes);
+        writer.add(SIGNATURE_BLOCK_NAME + signer.getBlockExtension(), signer.sign(signatureBytes));
+    }
+
+    /**
+     * Writes a "name: value" line, continuing it on lines starting with a space so that no line exceeds 72 bytes.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) throws IOException {
+        byte[] bytes = (name + ": " + value).getBytes("UTF-8");
+        int start = 0;
+        int lineLength = MAX_LINE_LENGTH;
+        while (bytes.length - start > lineLength) {
+            int end = start + lineLength;
+            // don't split UTF-8 sequences
+            while ((bytes[end] & 0xc0) == 0x80) {
+                end--;
+            }
+            out.write(bytes, start, end - start);
+            newLine(out);
+            out.write(' ');
+            start = end;
+            lineLength = MAX_LINE_LENGTH - 1;
+        }
+        out.write(bytes, start, bytes.length - start);
+        newLine(out);
+    }
+
+    private static void newLine(ByteArrayOutputStream out) {
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static boolean isSignatureEntry(String name) {
+        if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) >= 0) return false;
+        String upperCase = name.toUpperCase(Locale.US);
+        return upperCase.equals(MANIFEST_NAME) || upperCase.endsWith(".SF") || upperCase.endsWith(".RSA") ||
+                upperCase.endsWith(".DSA");
+    }
+
+    private static String getDigestKey(ZipEntryRecord entry) {
+        return entry.myName + '\n' + entry.myCrc + '\n' + entry.mySize + '\n' + entry.myCompressedSize;
+    }
+
+    private static String getDexKey(byte[] dex) {
+        CRC32 crc = new CRC32();
+        crc.update(dex);
+        return getDexKey(crc.getValue(), dex.length);
+    }
+
+    private static String getDexKey(long crc, long length) {
+        return AndroidManager.CLASSES_FILE_NAME + '\n' + crc + '\n' + length;
+    }
+
+    private static String computeDigest(FileChannel source, ZipEntryRecord entry) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream is = openData(source, entry);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return base64(digest.digest());
+    }
+
+    /**
+     * Returns a stream of the uncompressed data of the entry, the caller has to close it.
+     */
+    @NotNull
+    private static InputStream openData(FileChannel source, ZipEntryRecord entry) throws IOException {
+        byte[] data = ZipEntryRecord.read(source, entry.getDataOffset(source), (int) entry.myCompressedSize).array();
+        if (entry.myMethod == ZipEntryRecord.STORED) {
+            return new ByteArrayInputStream(data);
+        }
+        // raw inflater needs an extra dummy byte after the data
+        byte[] input = new byte[data.length + 1];
+        System.arraycopy(data, 0, input, 0, data.length);
+        return new InflaterInputStream(new ByteArrayInputStream(input), new Inflater(true)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    private static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static String base64(byte[] bytes) {
+        StringBuilder builder = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b0 = bytes[i] & 0xff;
+            int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+            int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+            builder.append(BASE64[b0 >> 2]);
+            builder.append(BASE64[(b0 << 4 | b1 >> 4) & 0x3f]);
+            builder.append(i + 1 < bytes.length ? BASE64[(b1 << 2 | b2 >> 6) & 0x3f] : '=');
+            builder.append(i + 2 < bytes.length ? BASE64[b2 & 0x3f] : '=');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Entries of a package produced by the previous build and their digests. Entries are keyed by name, the keys of
+     * their content (name, CRC and sizes) tell whether the package has changed and which digests can be reused.
+     */
+    private static final class ApkIndex {
+        private final long myLength;
+        private final long myTimestamp;
+        private final Map<String, String> myKeys;
+        private final Map<String, String> myDigests;
+
+        private ApkIndex(File output, Map<String, String> keys, Map<String, String> digests) {
+            myLength = output.length();
+            myTimestamp = output.lastModified();
+            myKeys = keys;
+            myDigests = digests;
+        }
+
+        /**
+         * Indexes a package built before, entry digests are taken from its manifest.
+         */
+        @NotNull
+        static ApkIndex read(@NotNull File output) throws IOException {
+            FileChannel channel = new RandomAccessFile(output, "r").getChannel();
+            try {
+                List<ZipEntryRecord> entries = ZipEntryRecord.readCentralDirectory(channel);
+                Map<String, String> keys = new HashMap<String, String>(entries.size());
+                Map<String, String> manifestDigests = Collections.emptyMap();
+                for (ZipEntryRecord entry : entries) {
+                    if (MANIFEST_NAME.equals(entry.myName)) {
+                        manifestDigests = readDigests(channel, entry);
+                    }
+                    else if (AndroidManager.CLASSES_FILE_NAME.equals(entry.myName)) {
+                        keys.put(entry.myName, getDexKey(entry.myCrc, entry.mySize));
+                    }
+                    else if (!isSignatureEntry(entry.myName)) {
+                        keys.put(entry.myName, getDigestKey(entry));
+                    }
+                }
+                Map<String, String> digests = new HashMap<String, String>(keys.size());
+                for (Map.Entry<String, String> entry : keys.entrySet()) {
+                    String digest = manifestDigests.get(entry.getKey());
+                    if (digest != null) {
+                        digests.put(entry.getValue(), digest);
+                    }
+                }
+                return new ApkIndex(output, keys, digests);
+            } finally {
+                channel.close();
+            }
+        }
+
+        @NotNull
+        private static Map<String, String> readDigests(FileChannel channel, ZipEntryRecord manifestEntry)
+                throws IOException {
+            Manifest manifest;
+            InputStream is = openData(channel, manifestEntry);
+            try {
+                manifest = new Manifest(is);
+            } finally {
+                is.close();
+            }
+            Map<String, String> digests = new HashMap<String, String>();
+            for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+                String digest = entry.getValue().getValue(DIGEST_ALGORITHM + "-Digest");
+                if (digest != null) {
+                    digests.put(entry.getKey(), digest);
+                }
+            }
+            return digests;
+        }
+
+        /**
+         * Returns the index of the same package after its timestamp was updated.
+         */
+        @NotNull
+        ApkIndex touched(File output) {
+            return new ApkIndex(output, myKeys, myDigests);
+        }
+
+        /**
+         * The package must not have been touched since it was built, otherwise the recorded entries may be stale.
+         */
+        boolean isValidFor(File output) {
+            return output.isFile() && output.length() == myLength && output.lastModified() == myTimestamp;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.android.util.AndroidBundle;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+/**
+ * Runs dx inside the IDE process. Classes of the SDK dx.jar are loaded by an isolated class loader which is cached
+ * per dx.jar, so JVM startup and JIT warm-up are paid only once per IDE session instead of once per make.
+ *
+ * @author Alexey Efimov
+ */
+final class InProcessDx {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.compiler.tools.InProcessDx");
+
+    @NonNls
+    private static final String DEXER_MAIN_CLASS = "com.android.dx.command.dexer.Main";
+    @NonNls
+    private static final String DEXER_ARGUMENTS_CLASS = "com.android.dx.command.dexer.Main$Arguments";
+    @NonNls
+    private static final String CONSOLE_CLASS = "com.android.dx.command.DxConsole";
+
+    private static final Map<String, InProcessDx> ourInstances = new HashMap<String, InProcessDx>();
+
+    private final long myJarTimestamp;
+    private final ClassLoader myClassLoader;
+    private final Method myRunMethod;
+    private final Method myParseMethod;
+    private final Class<?> myArgumentsClass;
+    private final Field myConsoleOut;
+    private final Field myConsoleErr;
+
+    private InProcessDx(long jarTimestamp, ClassLoader classLoader) throws Exception {
+        myJarTimestamp = jarTimestamp;
+        myClassLoader = classLoader;
+        Class<?> mainClass = Class.forName(DEXER_MAIN_CLASS, true, classLoader);
+        myArgumentsClass = Class.forName(DEXER_ARGUMENTS_CLASS, true, classLoader);
+        myRunMethod = mainClass.getMethod("run", myArgumentsClass);
+        myParseMethod = myArgumentsClass.getMethod("parse", String[].class);
+        Class<?> consoleClass = Class.forName(CONSOLE_CLASS, true, classLoader);
+        myConsoleOut = consoleClass.getField("out");
+        myConsoleErr = consoleClass.getField("err");
+    }
+
+    /**
+     * Returns the cached dx of the SDK, or null if dx.jar is missing or incompatible.
+     */
+    @Nullable
+    static InProcessDx getInstance(@NotNull String sdkPath) {
+        File dxJar = new File(AndroidDx.getDxJarPath(sdkPath));
+        if (!dxJar.isFile()) return null;
+        String key = dxJar.getAbsolutePath();
+        synchronized (ourInstances) {
+            InProcessDx dx = ourInstances.get(key);
+            if (dx == null || dx.myJarTimestamp != dxJar.lastModified()) {
+                dx = null;
+                ourInstances.remove(key);
+                try {
+                    // the parent is the bootstrap loader, so dx doesn't see IDE classes and vice versa
+                    ClassLoader loader = new URLClassLoader(new URL[]{dxJar.toURI().toURL()}, null);
+                    dx = new InProcessDx(dxJar.lastModified(), loader);
+                    ourInstances.put(key, dx);
+                } catch (Exception e) {
+                    LOG.info("Cannot load dx from " + key + ", dx will be run as an external process", e);
+                }
+            }
+            return dx;
+        }
+    }
+
+    /**
+     * Runs the dexer with the given command line arguments (the ones following "dx", without JVM options).
+     * The console of dx is global, so runs of the same dx are serialized.
+     */
+    @NotNull
+    synchronized Map<CompilerMessageCategory, List<String>> dex(@NotNull String... args) throws IOException {
+        String[] dexerArgs = args;
+        if (args.length > 0 && "--dex".equals(args[0])) {
+            dexerArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, dexerArgs, 0, dexerArgs.length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitCode;
+        String failure = null;
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        try {
+            Object oldOut = myConsoleOut.get(null);
+            Object oldErr = myConsoleErr.get(null);
+            myConsoleOut.set(null, new PrintStream(out, true));
+            myConsoleErr.set(null, new PrintStream(err, true));
+            thread.setContextClassLoader(myClassLoader);
+            try {
+                Object arguments = myArgumentsClass.newInstance();
+                myParseMethod.invoke(arguments, new Object[]{dexerArgs});
+                exitCode = (Integer) myRunMethod.invoke(null, arguments);
+            } catch (InvocationTargetException e) {
+                // dx reports bad input by exceptions, they are compile errors rather than IO failures
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                failure = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                exitCode = 1;
+            } finally {
+                thread.setContextClassLoader(contextClassLoader);
+                myConsoleOut.set(null, oldOut);
+                myConsoleErr.set(null, oldErr);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException(e.toString());
+        } catch (InstantiationException e) {
+            throw new IOException(e.toString());
+        }
+        Map<CompilerMessageCategory, List<String>> messages = toMessages(out, err);
+        if (failure != null) {
+            messages.get(CompilerMessageCategory.ERROR).add(0, failure);
+        }
+        if (exitCode != 0 && messages.get(CompilerMessageCategory.ERROR).isEmpty()) {
+            throw new IOException(AndroidBundle.message("command.0.execution.failed.with.exit.code.1",
+                    AndroidDx.TOOL + " " + StringUtil.join(args, " "), exitCode));
+        }
+        return messages;
+    }
+
+    /**
+     * Merges dex files with the dex merger of the same dx.jar.
+     */
+    @NotNull
+    synchronized Map<CompilerMessageCategory, List<String>> merge(@NotNull String outputFile, @NotNull List<String> dexFiles) throws IOException {
+        List<String> args = new ArrayList<String>(dexFiles.size() + 1);
+        args.add(outputFile);
+        args.addAll(dexFiles);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(myClassLoader);
+        try {
+            Class<?> mergerClass = Class.forName(AndroidDx.DEX_MERGER_CLASS, true, myClassLoader);
+            Method main = mergerClass.getMethod("main", String[].class);
+            main.invoke(null, new Object[]{args.toArray(new String[args.size()])});
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            new PrintStream(err, true).println(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+        return toMessages(new ByteArrayOutputStream(), err);
+    }
+
+    private static Map<CompilerMessageCategory, List<String>> toMessages(ByteArrayOutputStream out, ByteArrayOutputStream err) {
+        Map<CompilerMessageCategory, List<String>> messages = new HashMap<CompilerMessageCategory, List<String>>(2);
+        messages.put(CompilerMessageCategory.INFORMATION, splitLines(out.toString()));
+        messages.put(CompilerMessageCategory.ERROR, splitLines(err.toString()));
+        return messages;
+    }
+
+    private static List<String> splitLines(String output) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : output.split("[\\n\\r]+")) {
+            if (!StringUtil.isEmptyOrSpaces(line)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Serves invocations of dx, either as the SDK dx script or as {@code java -cp dx.jar}, from the cached in-process dx,
+     * ignoring the JVM options.
+     */
+    static final class Worker implements ToolWorker {
+        public boolean accepts(@NotNull String... command) {
+            String sdkPath = getSdkPath(command);
+            return sdkPath != null && getInstance(sdkPath) != null;
+        }
+
+        @NotNull
+        public ProcessResult execute(@Nullable ToolOutputListener listener, @NotNull String... command) throws IOException {
+            String sdkPath = getSdkPath(command);
+            InProcessDx dx = sdkPath != null ? getInstance(sdkPath) : null;
+            if (dx == null) {
+                throw new IOException("dx is not available in " + command[0]);
+            }
+            List<String> args = new ArrayList<String>(command.length);
+            for (int i = getMainClassIndex(command) + 1; i < command.length; i++) {
+                if (!command[i].startsWith("-J") && command[i].length() > 0) {
+                    args.add(command[i]);
+                }
+            }
+            Map<CompilerMessageCategory, List<String>> messages = dx.dex(args.toArray(new String[args.size()]));
+            if (listener != null) {
+                // dx output is captured in memory, so it can only be passed on once the run is finished
+                for (Map.Entry<CompilerMessageCategory, List<String>> entry : messages.entrySet()) {
+                    for (String line : entry.getValue()) {
+                        listener.onLine(entry.getKey(), line);
+                    }
+                }
+            }
+            List<String> errors = messages.get(CompilerMessageCategory.ERROR);
+            return new ProcessResult(messages.get(CompilerMessageCategory.INFORMATION), errors, errors.isEmpty() ? 0 : 1, false);
+        }
+
+        /**
+         * Returns the SDK path if the command runs the dx script of an SDK, i.e. {@code <sdk>/tools/dx}, or the dx main
+         * class from {@code <sdk>/tools/lib/dx.jar}.
+         */
+        @Nullable
+        private static String getSdkPath(String... command) {
+            int mainClassIndex = getMainClassIndex(command);
+            File toolsDir;
+            if (mainClassIndex > 0) {
+                if (mainClassIndex < 2 || !"-cp".equals(command[mainClassIndex - 2])) return null;
+                File libDir = new File(command[mainClassIndex - 1]).getParentFile();
+                toolsDir = libDir != null ? libDir.getParentFile() : null;
+            }
+            else {
+                if (!AndroidDx.TOOL.equals(ToolMetrics.getToolName(command[0]))) return null;
+                toolsDir = new File(command[0]).getParentFile();
+            }
+            if (toolsDir == null || !"tools".equals(toolsDir.getName())) return null;
+            File sdkDir = toolsDir.getParentFile();
+            return sdkDir != null ? sdkDir.getPath() : null;
+        }
+
+        /**
+         * Returns the index of the dx main class in a {@code java} command, or 0 for the dx script.
+         */
+        private static int getMainClassIndex(String... command) {
+            for (int i = 1; i < command.length; i++) {
+                if (AndroidDx.DX_MAIN_CLASS.equals(command[i])) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+}
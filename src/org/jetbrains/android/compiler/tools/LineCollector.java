@@ -0,0 +1,75 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a stream of output chunks into lines using one reusable buffer. Every line is passed to the listener, but only
+ * the first {@link #MAX_RETAINED_LINES} lines are retained; the rest are summarised by a single line.
+ *
+ * @author Alexey Efimov
+ */
+final class LineCollector {
+    static final int MAX_RETAINED_LINES = 500;
+
+    private final CompilerMessageCategory myCategory;
+    private final ToolOutputListener myListener;
+    private final StringBuilder myBuffer = new StringBuilder(256);
+    private final List<String> myLines = new ArrayList<String>();
+    private int myOmittedLines;
+
+    LineCollector(@NotNull CompilerMessageCategory category, @Nullable ToolOutputListener listener) {
+        myCategory = category;
+        myListener = listener;
+    }
+
+    synchronized void append(@NotNull String chunk) {
+        for (int i = 0, length = chunk.length(); i < length; i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n' || c == '\r') {
+                flushLine();
+            } else {
+                myBuffer.append(c);
+            }
+        }
+    }
+
+    private void flushLine() {
+        if (!isBlank(myBuffer)) {
+            String line = myBuffer.toString();
+            if (myLines.size() < MAX_RETAINED_LINES) {
+                myLines.add(line);
+            } else {
+                myOmittedLines++;
+            }
+            if (myListener != null) {
+                myListener.onLine(myCategory, line);
+            }
+        }
+        myBuffer.setLength(0);
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the incomplete last line and returns the retained lines.
+     */
+    @NotNull
+    synchronized List<String> finish() {
+        flushLine();
+        if (myOmittedLines > 0) {
+            myLines.add("... " + myOmittedLines + " more lines not shown");
+            myOmittedLines = 0;
+        }
+        return myLines;
+    }
+}
@@ -0,0 +1,38 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the number of tool processes running at the same time, whatever number of compiler threads request them.
+ *
+ * @author Alexey Efimov
+ */
+public final class PooledToolExecutor implements ToolExecutor {
+    private final ToolExecutor myDelegate;
+    private final Semaphore myPermits;
+
+    public PooledToolExecutor(@NotNull ToolExecutor delegate, int maxProcesses) {
+        myDelegate = delegate;
+        myPermits = new Semaphore(Math.max(1, maxProcesses), true);
+    }
+
+    @NotNull
+    public ProcessResult execute(@Nullable ToolOutputListener listener, @NotNull String... command) throws IOException {
+        try {
+            myPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        try {
+            return myDelegate.execute(listener, command);
+        } finally {
+            myPermits.release();
+        }
+    }
+}
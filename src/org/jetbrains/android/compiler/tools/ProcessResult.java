@@ -0,0 +1,47 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Messages and exit code of a finished tool invocation.
+ *
+ * @author Alexey Efimov
+ */
+public final class ProcessResult {
+    private final int myExitCode;
+    private final boolean myForked;
+    private final Map<CompilerMessageCategory, List<String>> myMessages;
+
+    public ProcessResult(@NotNull List<String> information, @NotNull List<String> error, int exitCode) {
+        this(information, error, exitCode, true);
+    }
+
+    /**
+     * @param forked false if the tool was served inside the IDE process, see {@link ToolWorker}
+     */
+    public ProcessResult(@NotNull List<String> information, @NotNull List<String> error, int exitCode, boolean forked) {
+        myExitCode = exitCode;
+        myForked = forked;
+        myMessages = new HashMap<CompilerMessageCategory, List<String>>(2);
+        myMessages.put(CompilerMessageCategory.INFORMATION, information);
+        myMessages.put(CompilerMessageCategory.ERROR, error);
+    }
+
+    @NotNull
+    public Map<CompilerMessageCategory, List<String>> getMessages() {
+        return myMessages;
+    }
+
+    public int getExitCode() {
+        return myExitCode;
+    }
+
+    public boolean isForked() {
+        return myForked;
+    }
+}
@@ -0,0 +1,17 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Strategy of running an external Android tool. The command is platform independent: the first element is the path of
+ * the tool executable, the rest are its arguments. Output lines are passed to the listener, if any, as they appear.
+ *
+ * @author Alexey Efimov
+ */
+public interface ToolExecutor {
+    @NotNull
+    ProcessResult execute(@Nullable ToolOutputListener listener, @NotNull String... command) throws IOException;
+}
@@ -0,0 +1,113 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-tool invocation counters: number of runs, processes started, failures, total and longest wall-clock time.
+ * Invocations are also added to the {@link BuildTrace} of the current thread.
+ *
+ * @author Alexey Efimov
+ */
+public final class ToolMetrics {
+    private static final ToolMetrics ourInstance = new ToolMetrics();
+
+    private final Map<String, Counter> myCounters = new TreeMap<String, Counter>();
+
+    private ToolMetrics() {
+    }
+
+    public static ToolMetrics getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Returns the tool name used as the metrics key for a command, i.e. the executable name without extension, or the
+     * name of the jar a {@code java -cp <jar>} command runs.
+     */
+    @NotNull
+    public static String getToolName(@NotNull String... command) {
+        String name = getBaseName(command[0]);
+        if ("java".equals(name)) {
+            for (int i = 1; i < command.length - 1; i++) {
+                if ("-cp".equals(command[i])) {
+                    return getBaseName(command[i + 1]);
+                }
+            }
+        }
+        return name;
+    }
+
+    private static String getBaseName(String path) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Records an invocation which started at the given {@link System#nanoTime()} and has just finished.
+     */
+    public void record(@NotNull String tool, long startNanos, boolean process, boolean failed) {
+        long endNanos = System.nanoTime();
+        BuildTrace.addTool(tool, startNanos, endNanos, process, failed);
+        record(tool, endNanos - startNanos, process, failed);
+    }
+
+    private synchronized void record(String tool, long nanos, boolean process, boolean failed) {
+        Counter counter = myCounters.get(tool);
+        if (counter == null) {
+            counter = new Counter();
+            myCounters.put(tool, counter);
+        }
+        counter.myInvocations++;
+        if (process) {
+            counter.myProcesses++;
+        }
+        counter.myTotalNanos += nanos;
+        counter.myMaxNanos = Math.max(counter.myMaxNanos, nanos);
+        if (failed) {
+            counter.myFailures++;
+        }
+    }
+
+    /**
+     * Returns one line per tool describing the invocations recorded since the previous call, and resets the counters.
+     */
+    @NotNull
+    public synchronized List<String> drainSummary() {
+        List<String> result = new ArrayList<String>(myCounters.size());
+        for (Map.Entry<String, Counter> entry : myCounters.entrySet()) {
+            Counter counter = entry.getValue();
+            StringBuilder builder = new StringBuilder(entry.getKey()).append(": ")
+                    .append(counter.myInvocations).append(counter.myInvocations == 1 ? " run" : " runs")
+                    .append(", total ").append(toMillis(counter.myTotalNanos)).append(" ms")
+                    .append(", max ").append(toMillis(counter.myMaxNanos)).append(" ms");
+            if (counter.myProcesses < counter.myInvocations) {
+                builder.append(", ").append(counter.myInvocations - counter.myProcesses).append(" in-process");
+            }
+            if (counter.myFailures > 0) {
+                builder.append(", ").append(counter.myFailures).append(" failed");
+            }
+            result.add(builder.toString());
+        }
+        myCounters.clear();
+        return result;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static final class Counter {
+        private int myInvocations;
+        private int myProcesses;
+        private int myFailures;
+        private long myTotalNanos;
+        private long myMaxNanos;
+    }
+}
@@ -0,0 +1,13 @@
+package org.jetbrains.android.compiler.tools;
+
+import com.intellij.openapi.compiler.CompilerMessageCategory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives tool output line by line while the tool is still running.
+ *
+ * @author Alexey Efimov
+ */
+public interface ToolOutputListener {
+    void onLine(@NotNull CompilerMessageCategory category, @NotNull String line);
+}
@@ -0,0 +1,17 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Long-lived implementation of a tool which can serve many requests without starting a process for each of them.
+ *
+ * @author Alexey Efimov
+ */
+public interface ToolWorker extends ToolExecutor {
+    /**
+     * Returns true if the worker is able to execute the command.
+     */
+    boolean accepts(@NotNull String... command);
+}
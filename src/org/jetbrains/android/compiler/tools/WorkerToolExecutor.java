@@ -0,0 +1,36 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Routes commands to registered long-lived {@link ToolWorker}s, other commands are passed to the delegate executor.
+ *
+ * @author Alexey Efimov
+ */
+public final class WorkerToolExecutor implements ToolExecutor {
+    private final ToolExecutor myDelegate;
+    private final List<ToolWorker> myWorkers = new CopyOnWriteArrayList<ToolWorker>();
+
+    public WorkerToolExecutor(@NotNull ToolExecutor delegate) {
+        myDelegate = delegate;
+    }
+
+    public void registerWorker(@NotNull ToolWorker worker) {
+        myWorkers.add(worker);
+    }
+
+    @NotNull
+    public ProcessResult execute(@Nullable ToolOutputListener listener, @NotNull String... command) throws IOException {
+        for (ToolWorker worker : myWorkers) {
+            if (worker.accepts(command)) {
+                return worker.execute(listener, command);
+            }
+        }
+        return myDelegate.execute(listener, command);
+    }
+}
@@ -0,0 +1,153 @@
+package org.jetbrains.android.compiler.tools;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Central directory record of a zip entry. Only what is needed to copy entries between archives without inflating
+ * them is kept; archives using ZIP64 or spanning several disks are not supported.
+ *
+ * @author Alexey Efimov
+ */
+final class ZipEntryRecord {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_LENGTH = 30;
+    static final int CENTRAL_HEADER_LENGTH = 46;
+    static final int END_LENGTH = 22;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    /**
+     * General purpose flag: sizes and CRC follow the data instead of being in the local header.
+     */
+    static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+    static final int UTF8_FLAG = 1 << 11;
+
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+    final String myName;
+    final byte[] myNameBytes;
+    final int myFlags;
+    final int myMethod;
+    final int myDosTime;
+    final long myCrc;
+    final long myCompressedSize;
+    final long mySize;
+    final long myLocalHeaderOffset;
+
+    ZipEntryRecord(@NotNull String name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                   long localHeaderOffset) {
+        myName = name;
+        myNameBytes = encodeName(name);
+        myFlags = flags;
+        myMethod = method;
+        myDosTime = dosTime;
+        myCrc = crc;
+        myCompressedSize = compressedSize;
+        mySize = size;
+        myLocalHeaderOffset = localHeaderOffset;
+    }
+
+    /**
+     * Returns the same entry placed at another offset.
+     */
+    @NotNull
+    ZipEntryRecord moveTo(long localHeaderOffset) {
+        return new ZipEntryRecord(myName, myFlags & ~DATA_DESCRIPTOR_FLAG, myMethod, myDosTime, myCrc, myCompressedSize,
+                mySize, localHeaderOffset);
+    }
+
+    /**
+     * Returns the offset of the entry data, which depends on the extra field length of the local header.
+     */
+    long getDataOffset(@NotNull FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, myLocalHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header of " + myName);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return myLocalHeaderOffset + LOCAL_HEADER_LENGTH + nameLength + extraLength;
+    }
+
+    /**
+     * Reads the central directory of an archive, entries are returned in the order they are listed there.
+     */
+    @NotNull
+    static List<ZipEntryRecord> readCentralDirectory(@NotNull FileChannel channel) throws IOException {
+        long end = findEnd(channel);
+        ByteBuffer endRecord = read(channel, end, END_LENGTH);
+        int count = endRecord.getShort(10) & 0xffff;
+        long size = endRecord.getInt(12) & 0xffffffffL;
+        long offset = endRecord.getInt(16) & 0xffffffffL;
+        ByteBuffer directory = read(channel, offset, (int) size);
+        List<ZipEntryRecord> entries = new ArrayList<ZipEntryRecord>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Bad central directory entry #" + i);
+            }
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            int dosTime = directory.getInt(position + 12);
+            long crc = directory.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long entrySize = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_LENGTH);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8");
+            entries.add(new ZipEntryRecord(name, flags, method, dosTime, crc, compressedSize, entrySize, localHeaderOffset));
+            position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static long findEnd(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int length = (int) Math.min(fileSize, END_LENGTH + MAX_COMMENT_LENGTH);
+        if (length < END_LENGTH) {
+            throw new IOException("Not a zip file");
+        }
+        ByteBuffer tail = read(channel, fileSize - length, length);
+        for (int i = length - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                return fileSize - length + i;
+            }
+        }
+        throw new IOException("Zip end of central directory is not found");
+    }
+
+    @NotNull
+    static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] encodeName(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.jetbrains.android.dom.attrs.AttributeDefinition;
 import org.jetbrains.android.dom.attrs.AttributeDefinitions;
 import org.jetbrains.android.dom.attrs.StyleableDefinition;
 import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.android.facet.FrameworkResources;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -27,6 +28,7 @@ public abstract class StyleableProvider {
     private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.dom.StyleableProvider");
 
     protected final AndroidFacet facet;
+    private AttributeDefinitions parsedDefinitions = null;
     private AttributeDefinitions definitions = null;
     protected boolean forAllFiles = false;
 
@@ -47,14 +49,45 @@ public abstract class StyleableProvider {
 
     public abstract boolean isMyFile(@NotNull XmlFile file, @Nullable Module module);
 
+    /**
+     * Returns the definitions of the attrs file of the SDK. The parsed definitions are shared by all facets using the
+     * SDK, see {@link FrameworkResources}; what {@link #createDefinitions} makes of them is kept by this provider.
+     */
     @Nullable
     public synchronized AttributeDefinitions getAttributeDefinitions() {
-        if (definitions == null) {
-            definitions = parseAttributeDefinitions(getAttrsFilename());
+        final String fileName = getAttrsFilename();
+        final VirtualFile attrsFile = ApplicationManager.getApplication().runReadAction(new Computable<VirtualFile>() {
+            public VirtualFile compute() {
+                final VirtualFile sdkValuesDir = facet.getResourceTypeDir("values", "android");
+                return sdkValuesDir != null ? sdkValuesDir.findChild(fileName) : null;
+            }
+        });
+        if (attrsFile == null) {
+            LOG.info("File " + fileName + " is not found in <sdk>/tools/lib/res/default/value directory");
+            return null;
+        }
+        AttributeDefinitions parsed = FrameworkResources.getInstance().getAttributeDefinitions(attrsFile,
+                new Computable<AttributeDefinitions>() {
+                    public AttributeDefinitions compute() {
+                        return parseAttributeDefinitions(attrsFile);
+                    }
+                });
+        if (parsed != parsedDefinitions) {
+            parsedDefinitions = parsed;
+            definitions = parsed != null ? createDefinitions(parsed) : null;
         }
         return definitions;
     }
 
+    /**
+     * Returns the definitions this provider works with. The parsed definitions are shared between facets and must not
+     * be changed; a provider which completes them has to do it on a copy.
+     */
+    @NotNull
+    protected AttributeDefinitions createDefinitions(@NotNull AttributeDefinitions parsed) {
+        return parsed;
+    }
+
     @Nullable
     public StyleableDefinition getStyleableByTagName(String tagName) {
         String styleableName = getStyleableNameByTagName(tagName);
@@ -70,27 +103,18 @@ public abstract class StyleableProvider {
     }
 
     @Nullable
-    private AttributeDefinitions parseAttributeDefinitions(final String fileName) {
-        PsiFile file = ApplicationManager.getApplication().runReadAction(new Computable<PsiFile>() {
-            public PsiFile compute() {
-                final VirtualFile sdkValuesDir = facet.getResourceTypeDir("values", "android");
-                if (sdkValuesDir == null) return null;
-                final VirtualFile vFile = sdkValuesDir.findChild(fileName);
-                if (vFile == null) return null;
+    private AttributeDefinitions parseAttributeDefinitions(final VirtualFile vFile) {
+        return ApplicationManager.getApplication().runReadAction(new Computable<AttributeDefinitions>() {
+            public AttributeDefinitions compute() {
                 Project project = facet.getModule().getProject();
-                return PsiManager.getInstance(project).findFile(vFile);
+                PsiFile file = PsiManager.getInstance(project).findFile(vFile);
+                if (!(file instanceof XmlFile)) {
+                    LOG.info("File " + vFile.getPath() + " is not an xml file");
+                    return null;
+                }
+                return new AttributeDefinitions((XmlFile) file);
             }
         });
-        String valuePath = "<sdk>/tools/lib/res/default/value";
-        if (file == null) {
-            LOG.info("File " + fileName + " is not found in " + valuePath + " directory");
-            return null;
-        }
-        if (!(file instanceof XmlFile)) {
-            LOG.info("File " + fileName + " in " + valuePath + " is not an xml file");
-            return null;
-        }
-        return new AttributeDefinitions((XmlFile) file);
     }
 
     public AttributeDefinition findAttribute(String name, StyleableDefinition styleable, XmlTag parentTag) {
@@ -19,6 +19,30 @@ public class AttributeDefinitions {
     private Map<String, StyleableDefinition> myStyleables = new HashMap<String, StyleableDefinition>();
     private Map<StyleableDefinition, String[]> parentMap = new HashMap<StyleableDefinition, String[]>();
 
+    /**
+     * Copies just parsed definitions, so that the copy can be linked without changing the original. The attributes
+     * themselves are shared.
+     */
+    public AttributeDefinitions(@NotNull AttributeDefinitions definitions) {
+        myAttrs.putAll(definitions.myAttrs);
+        Map<StyleableDefinition, StyleableDefinition> copies = new HashMap<StyleableDefinition, StyleableDefinition>();
+        for (Map.Entry<String, StyleableDefinition> entry : definitions.myStyleables.entrySet()) {
+            StyleableDefinition copy = new StyleableDefinition(entry.getKey());
+            copy.addAttributes(entry.getValue().getAttributes());
+            copies.put(entry.getValue(), copy);
+            myStyleables.put(entry.getKey(), copy);
+        }
+        for (Map.Entry<StyleableDefinition, StyleableDefinition> entry : copies.entrySet()) {
+            StyleableDefinition copy = entry.getValue();
+            for (StyleableDefinition parent : entry.getKey().getParents()) {
+                copy.addParent(copies.get(parent));
+            }
+            for (StyleableDefinition child : entry.getKey().getChildren()) {
+                copy.addChild(copies.get(child));
+            }
+        }
+    }
+
     public AttributeDefinitions(@NotNull XmlFile file) {
         final XmlDocument document = file.getDocument();
         if (document == null) return;
@@ -39,12 +39,8 @@ public class ResourceReferenceConverter extends ResolvingConverter<ResourceValue
         String resourceTypeValue = resourceType != null ? resourceType.value() : myResourceType;
         AndroidFacet facet = AndroidFacet.getInstance(context.getModule());
         if (facet != null && resourceTypeValue != null) {
-            List<ResourceElement> elements = facet.getResources(resourceTypeValue, null);
-            for(ResourceElement element: elements) {
-                String name = element.getName().getValue();
-                if (name != null) {
-                    result.add(ResourceValue.referenceTo('@', resourceTypeValue, name));
-                }
+            for(String name: facet.getValueResourceNames(resourceTypeValue, null)) {
+                result.add(ResourceValue.referenceTo('@', resourceTypeValue, name));
             }
 
             List<String> files = facet.getResourceFileNames(resourceTypeValue);
@@ -70,13 +66,8 @@ public class ResourceReferenceConverter extends ResolvingConverter<ResourceValue
             String resType = ref.getResourceType();
             AndroidFacet facet = AndroidFacet.getInstance(context.getModule());
             if (facet == null) return PsiReference.EMPTY_ARRAY;
-            GenericDomValue target = null;
-            List<ResourceElement> list = facet.getResources(resType, ref.getPackage());
-            for(ResourceElement rs: list) {
-                if (ref.getResourceName().equals(rs.getName().getValue())) {
-                    target = rs.getName();
-                }
-            }
+            ResourceElement resource = facet.findValueResource(resType, ref.getResourceName(), ref.getPackage());
+            GenericDomValue target = resource != null ? resource.getName() : null;
             if (target == null) {
                 PsiFile file = facet.findResourceFile(resType, ref.getResourceName(), ref.getPackage());
                 if (file != null) {
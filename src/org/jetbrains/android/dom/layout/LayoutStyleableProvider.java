@@ -16,7 +16,6 @@ import org.jetbrains.android.dom.attrs.StyleableDefinition;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.util.Key;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
@@ -27,7 +26,6 @@ public class LayoutStyleableProvider extends StyleableProvider {
     public static final Key<LayoutStyleableProvider> KEY = new Key<LayoutStyleableProvider>();
 
     private Map<String, PsiClass> viewClassMap = null;
-    private boolean initialized;
 
     public LayoutStyleableProvider(AndroidFacet facet) {
         super(facet);
@@ -131,15 +129,14 @@ public class LayoutStyleableProvider extends StyleableProvider {
         }
     }
 
-    @Nullable
-    public synchronized AttributeDefinitions getAttributeDefinitions() {
-        AttributeDefinitions definitions = super.getAttributeDefinitions();
-        if (!initialized) {
-            linkSuperclasses(definitions);
-            addChildren(definitions);
-            linkLayoutStyleables(definitions);
-            initialized = true;
-        }
+    @NotNull
+    @Override
+    protected AttributeDefinitions createDefinitions(@NotNull AttributeDefinitions parsed) {
+        // linking depends on the view classes of the project, so it's done on a copy of the shared definitions
+        AttributeDefinitions definitions = new AttributeDefinitions(parsed);
+        linkSuperclasses(definitions);
+        addChildren(definitions);
+        linkLayoutStyleables(definitions);
         return definitions;
     }
 
@@ -5,17 +5,23 @@ import com.intellij.facet.FacetManager;
 import com.intellij.facet.FacetTypeId;
 import com.intellij.facet.FacetTypeRegistry;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileTypes.StdFileTypes;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CompilerModuleExtension;
 import com.intellij.openapi.roots.ModuleRootManager;
 import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.xml.XmlFile;
+import com.intellij.psi.xml.XmlTag;
 import com.intellij.util.xml.DomElement;
 import com.intellij.util.xml.DomFileElement;
 import com.intellij.util.xml.DomManager;
@@ -40,6 +46,20 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
     public static final FacetTypeId<AndroidFacet> ID = new FacetTypeId<AndroidFacet>("android");
     private final Map<Key<? extends StyleableProvider>, StyleableProvider> styleableProviders =
             new HashMap<Key<? extends StyleableProvider>, StyleableProvider>();  
+    /**
+     * Value resource indices by the path of their resources directory.
+     */
+    private final Map<String, ValueResourceIndex> valueResourceIndices = new HashMap<String, ValueResourceIndex>();
+    /**
+     * File resource indices by the path of their resources directory.
+     */
+    private final Map<String, FileResourceIndex> fileResourceIndices = new HashMap<String, FileResourceIndex>();
+    /**
+     * Resource resolvers by the qualifiers of their device configuration, so switching back to a configuration reuses
+     * the choices already made for it.
+     */
+    private final Map<String, ResourceResolver> resourceResolvers = new HashMap<String, ResourceResolver>();
+    private final ResourceChangeListener resourceChangeListener = new ResourceChangeListener(this);
 
     public AndroidFacet(@NotNull Module module, String name, @NotNull AndroidFacetConfiguration configuration) {
         super(getFacetType(), module, name, configuration, null);
@@ -51,6 +71,35 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
         return FacetManager.getInstance(module).getFacetByType(ID);
     }
 
+    @Override
+    public void initFacet() {
+        resourceChangeListener.register(getModule().getProject());
+    }
+
+    @Override
+    public void disposeFacet() {
+        resourceChangeListener.unregister();
+        synchronized (valueResourceIndices) {
+            for (ValueResourceIndex index : valueResourceIndices.values()) {
+                index.save();
+            }
+        }
+    }
+
+    void resourceChanged(@NotNull String path, boolean directory) {
+        synchronized (valueResourceIndices) {
+            for (ValueResourceIndex index : valueResourceIndices.values()) {
+                index.markDirty(path, directory);
+            }
+        }
+        synchronized (fileResourceIndices) {
+            for (FileResourceIndex index : fileResourceIndices.values()) {
+                index.markDirty(path, directory);
+            }
+        }
+        FrameworkResources.getInstance().resourceChanged(path, directory);
+    }
+
     private <T extends StyleableProvider> void registerStyleableProvider(Key<T> key, T provider) {
         styleableProviders.put(key, provider);
     }
@@ -127,11 +176,19 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
     }
 
     public List<Resources> getValueResources(@Nullable String resPackage) {
+        return getValueResources(null, resPackage);
+    }
+
+    /**
+     * Returns the values files declaring resources of the type, or any resources if the type is null.
+     */
+    private List<Resources> getValueResources(@Nullable String resType, @Nullable String resPackage) {
         List<Resources> result = new ArrayList<Resources>();
-        VirtualFile valuesDir = getResourceTypeDir("values", resPackage);
-        if (valuesDir != null) {
-            for (VirtualFile valuesFile : valuesDir.getChildren()) {
-                if (!valuesFile.isDirectory() && valuesFile.getFileType().equals(StdFileTypes.XML)) {
+        ValueResourceIndex index = getValueResourceIndex(resPackage);
+        if (index != null) {
+            for (String path : index.getPaths(resType)) {
+                VirtualFile valuesFile = LocalFileSystem.getInstance().findFileByPath(path);
+                if (valuesFile != null && valuesFile.getFileType().equals(StdFileTypes.XML)) {
                     Resources resources = loadDomElement(valuesFile, Resources.class);
                     if (resources != null) {
                         result.add(resources);
@@ -142,6 +199,51 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
         return result;
     }
 
+    /**
+     * Returns the names of the value resources of the type, without loading the values files.
+     */
+    @NotNull
+    public Set<String> getValueResourceNames(@NotNull String resType, @Nullable String resPackage) {
+        ValueResourceIndex index = getValueResourceIndex(resPackage);
+        return index != null ? index.getNames(resType) : Collections.<String>emptySet();
+    }
+
+    @Nullable
+    private ValueResourceIndex getValueResourceIndex(@Nullable String resPackage) {
+        if ("android".equals(resPackage)) {
+            VirtualFile sdkResourcesDir = getSdkResourcesDir();
+            return sdkResourcesDir != null ? FrameworkResources.getInstance().getValueResourceIndex(sdkResourcesDir) : null;
+        }
+        VirtualFile resourcesDir = getResourcesDir();
+        if (resourcesDir == null) return null;
+        synchronized (valueResourceIndices) {
+            ValueResourceIndex index = valueResourceIndices.get(resourcesDir.getPath());
+            if (index == null) {
+                index = new ValueResourceIndex(resourcesDir.getPath());
+                valueResourceIndices.put(resourcesDir.getPath(), index);
+            }
+            return index;
+        }
+    }
+
+    @Nullable
+    private FileResourceIndex getFileResourceIndex(@Nullable String resPackage) {
+        if ("android".equals(resPackage)) {
+            VirtualFile sdkResourcesDir = getSdkResourcesDir();
+            return sdkResourcesDir != null ? FrameworkResources.getInstance().getFileResourceIndex(sdkResourcesDir) : null;
+        }
+        VirtualFile resourcesDir = getResourcesDir();
+        if (resourcesDir == null) return null;
+        synchronized (fileResourceIndices) {
+            FileResourceIndex index = fileResourceIndices.get(resourcesDir.getPath());
+            if (index == null) {
+                index = new FileResourceIndex(resourcesDir.getPath());
+                fileResourceIndices.put(resourcesDir.getPath(), index);
+            }
+            return index;
+        }
+    }
+
     private <T extends DomElement> T loadDomElement(final VirtualFile manifestFile, final Class<T> aClass) {
         return ApplicationManager.getApplication().runReadAction(new Computable<T>() {
             public T compute() {
@@ -159,44 +261,128 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
 
     public List<ResourceElement> getResources(@Nullable String resType, @Nullable String resPackage) {
         List<ResourceElement> result = new ArrayList<ResourceElement>();
-        List<Resources> resourceFiles = getValueResources(resPackage);
+        List<Resources> resourceFiles = getValueResources(resType, resPackage);
         for (Resources res : resourceFiles) {
-            if (resType == null || resType.equals("string")) {
-                result.addAll(res.getStrings());
-            }
-            if (resType == null || resType.equals("drawable")) {
-                result.addAll(res.getDrawables());
-            }
-            if (resType == null || resType.equals("color")) {
-                result.addAll(res.getColors());
-            }
-            if (resType == null || resType.equals("style")) {
-                result.addAll(res.getStyles());
-            }
+            addResources(res, resType, result);
         }
         return result;
     }
 
+    private static void addResources(Resources res, @Nullable String resType, List<ResourceElement> result) {
+        if (resType == null || resType.equals("string")) {
+            result.addAll(res.getStrings());
+        }
+        if (resType == null || resType.equals("drawable")) {
+            result.addAll(res.getDrawables());
+        }
+        if (resType == null || resType.equals("color")) {
+            result.addAll(res.getColors());
+        }
+        if (resType == null || resType.equals("style")) {
+            result.addAll(res.getStyles());
+        }
+    }
+
+    /**
+     * Returns the declaration of the value resource in the values directory best matching the device configuration,
+     * the first one in the order of values files and lines. Only the declaring file is loaded; the declaring tag is
+     * found by the line kept in the index.
+     */
     @Nullable
-    public PsiFile findResourceFile(String resType, String resourceName, @Nullable String resPackage) {
-        if (resType.equals("drawable")) {
-            return findDrawable(resourceName, resPackage);
+    public ResourceElement findValueResource(@NotNull final String resType, @NotNull final String resourceName,
+                                             @Nullable String resPackage) {
+        ValueResourceIndex index = getValueResourceIndex(resPackage);
+        if (index == null) return null;
+        List<ValueResourceIndex.Location> locations = index.getLocations(resType, resourceName);
+        Set<String> paths = new LinkedHashSet<String>();
+        for (ValueResourceIndex.Location location : locations) {
+            paths.add(location.getPath());
+        }
+        for (String path : getResourceResolver().order(new ArrayList<String>(paths))) {
+            for (final ValueResourceIndex.Location location : locations) {
+                if (!location.getPath().equals(path)) continue;
+                ResourceElement element = ApplicationManager.getApplication().runReadAction(new Computable<ResourceElement>() {
+                    public ResourceElement compute() {
+                        return findValueResource(location, resType, resourceName);
+                    }
+                });
+                if (element != null) {
+                    return element;
+                }
+            }
         }
         return null;
     }
 
-    private static final String[] DRAWABLE_EXTENSIONS = new String[]{".png", ".9.png", ".jpg"};
+    /**
+     * Returns the resolver choosing resource variants for the device configuration of the facet.
+     */
+    @NotNull
+    private ResourceResolver getResourceResolver() {
+        String qualifiers = getConfiguration().RESOURCE_QUALIFIERS;
+        synchronized (resourceResolvers) {
+            ResourceResolver resolver = resourceResolvers.get(qualifiers);
+            if (resolver == null) {
+                ResourceQualifiers device = ResourceQualifiers.parse(qualifiers);
+                resolver = new ResourceResolver(device != null ? device : ResourceQualifiers.NONE);
+                resourceResolvers.put(qualifiers, resolver);
+            }
+            return resolver;
+        }
+    }
+
+    @Nullable
+    private ResourceElement findValueResource(ValueResourceIndex.Location location, String resType, String resourceName) {
+        VirtualFile valuesFile = LocalFileSystem.getInstance().findFileByPath(location.getPath());
+        if (valuesFile == null) return null;
+        Project project = getModule().getProject();
+        PsiFile file = PsiManager.getInstance(project).findFile(valuesFile);
+        if (!(file instanceof XmlFile)) return null;
+        Document document = PsiDocumentManager.getInstance(project).getDocument(file);
+        int line = location.getLine() - 1;
+        if (document != null && line >= 0 && line < document.getLineCount()) {
+            // the line is the one the start tag ends on, any element of it but leading whitespace belongs to the tag
+            CharSequence text = document.getCharsSequence();
+            int offset = document.getLineStartOffset(line);
+            int end = document.getLineEndOffset(line);
+            while (offset < end && Character.isWhitespace(text.charAt(offset))) {
+                offset++;
+            }
+            PsiElement psiElement = file.findElementAt(offset);
+            XmlTag tag = psiElement != null ? PsiTreeUtil.getParentOfType(psiElement, XmlTag.class, false) : null;
+            if (tag != null && resourceName.equals(tag.getAttributeValue("name"))) {
+                DomElement domElement = DomManager.getDomManager(project).getDomElement(tag);
+                if (domElement instanceof ResourceElement) {
+                    return (ResourceElement) domElement;
+                }
+            }
+        }
+        // the document changed since the file was indexed, look through the declaring file only
+        Resources resources = loadDomElement(valuesFile, Resources.class);
+        if (resources == null) return null;
+        List<ResourceElement> elements = new ArrayList<ResourceElement>();
+        addResources(resources, resType, elements);
+        for (ResourceElement element : elements) {
+            if (resourceName.equals(element.getName().getValue())) {
+                return element;
+            }
+        }
+        return null;
+    }
 
+    /**
+     * Returns the file of a file-based resource of any type, in the directory best matching the device configuration.
+     */
     @Nullable
-    private PsiFile findDrawable(String resourceName, @Nullable String resPackage) {
-        VirtualFile typeDir = getResourceTypeDir("drawable", resPackage);
-        if (typeDir == null) return null;
-        for (String ext : DRAWABLE_EXTENSIONS) {
-            final VirtualFile drawableFile = typeDir.findChild(resourceName + ext);
-            if (drawableFile != null) {
+    public PsiFile findResourceFile(String resType, String resourceName, @Nullable String resPackage) {
+        FileResourceIndex index = getFileResourceIndex(resPackage);
+        if (index == null) return null;
+        for (String path : getResourceResolver().order(index.getPaths(resType, resourceName))) {
+            final VirtualFile resourceFile = LocalFileSystem.getInstance().findFileByPath(path);
+            if (resourceFile != null) {
                 return ApplicationManager.getApplication().runReadAction(new Computable<PsiFile>() {
                     public PsiFile compute() {
-                        return PsiManager.getInstance(getModule().getProject()).findFile(drawableFile);
+                        return PsiManager.getInstance(getModule().getProject()).findFile(resourceFile);
                     }
                 });
             }
@@ -205,23 +391,8 @@ public class AndroidFacet extends Facet<AndroidFacetConfiguration> {
     }
 
     public List<String> getResourceFileNames(@NotNull String resourceType) {
-        List<String> result = new ArrayList<String>();
-        if (resourceType.equals("drawable")) {
-            VirtualFile drawablesDir = getResourceTypeDir("drawable", null);
-            if (drawablesDir != null) {
-                VirtualFile[] files = drawablesDir.getChildren();
-                for (VirtualFile file : files) {
-                    if (file.isDirectory()) continue;
-                    for (String ext : DRAWABLE_EXTENSIONS) {
-                        String fileName = file.getName();
-                        if (fileName.endsWith(ext)) {
-                            result.add(fileName.substring(0, fileName.length() - ext.length()));
-                        }
-                    }
-                }
-            }
-        }
-        return result;
+        FileResourceIndex index = getFileResourceIndex(null);
+        return index != null ? new ArrayList<String>(index.getNames(resourceType)) : new ArrayList<String>();
     }
 
     public static AndroidFacetType getFacetType() {
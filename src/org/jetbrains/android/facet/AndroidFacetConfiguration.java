@@ -21,12 +21,66 @@ public class AndroidFacetConfiguration implements FacetConfiguration {
 
     private String sdkPath;
     public String RESOURCES_PATH = "res";
+    /**
+     * Number of worker threads used to run external Android tools concurrently, 0 means number of available processors.
+     */
+    public int BUILD_THREADS = 0;
+    /**
+     * Whether R.java is generated once per module into a single source root instead of into every source root.
+     */
+    public boolean SINGLE_R_SOURCE_ROOT = true;
+    /**
+     * Whether R.java is written by the IDE from the resource files instead of by aapt; resources the IDE can't number
+     * the way aapt does are still left to aapt.
+     */
+    public boolean IN_PROCESS_R_JAVA = false;
+    /**
+     * Configuration qualifiers of the target device, such as {@code fr-land-hdpi}, which choose among resource variants
+     * in the editor; empty means any configuration.
+     */
+    public String RESOURCE_QUALIFIERS = "";
+    /**
+     * Whether resource up-to-date checks compare file content digests instead of timestamps.
+     */
+    public boolean CONTENT_HASH_VALIDITY = true;
+    /**
+     * Whether only changed packages and jars are passed to dx, their intermediate dex files being merged into classes.dex.
+     */
+    public boolean INCREMENTAL_DEX = false;
+    /**
+     * Whether dx runs inside the IDE process instead of a separate JVM.
+     */
+    public boolean DX_IN_PROCESS = false;
+    /**
+     * Whether dx heap size and thread count are chosen from the number of classes to dex and available processors.
+     */
+    public boolean DX_AUTO_TUNING = true;
+    /**
+     * Maximum heap size of dx in megabytes, used unless dx is tuned automatically or runs inside the IDE process.
+     */
+    public int DX_HEAP_SIZE = 384;
+    /**
+     * Number of threads dx uses, unless dx is tuned automatically.
+     */
+    public int DX_THREADS = 1;
+    /**
+     * Additional JVM options of dx, separated by spaces; not used when dx runs inside the IDE process.
+     */
+    public String DX_JVM_OPTIONS = "";
+    /**
+     * Whether dx skips bytecode optimization, which makes debug builds faster.
+     */
+    public boolean DX_NO_OPTIMIZE = false;
     private static boolean ddmLibInitialized = false;
 
     public String getSdkPath() {
         return sdkPath;
     }
 
+    public int getBuildThreads() {
+        return BUILD_THREADS > 0 ? BUILD_THREADS : Runtime.getRuntime().availableProcessors();
+    }
+
     public String getToolPath(String toolName) {
         if (SystemInfo.isWindows) {
             toolName += ".exe";
@@ -10,6 +10,8 @@ import com.intellij.ide.util.PropertiesComponent;
 import org.jetbrains.annotations.Nls;
 
 import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 /**
  * @author yole
@@ -17,12 +19,29 @@ import javax.swing.*;
 public class AndroidFacetEditorTab extends FacetEditorTab {
     private JPanel myPanel;
     private TextFieldWithBrowseButton mySdkPathField;
+    private JTextField myBuildThreadsField;
+    private JCheckBox mySingleRSourceRootCheckBox;
+    private JCheckBox myInProcessRJavaCheckBox;
+    private JCheckBox myContentHashValidityCheckBox;
+    private JCheckBox myIncrementalDexCheckBox;
+    private JCheckBox myDxInProcessCheckBox;
+    private JCheckBox myDxAutoTuningCheckBox;
+    private JTextField myDxHeapSizeField;
+    private JTextField myDxThreadsField;
+    private JTextField myDxJvmOptionsField;
+    private JCheckBox myDxNoOptimizeCheckBox;
+    private JTextField myResourceQualifiersField;
     private AndroidFacetConfiguration myConfiguration;
 
     public AndroidFacetEditorTab(Project project, AndroidFacetConfiguration androidFacetConfiguration) {
         myConfiguration = androidFacetConfiguration;
         mySdkPathField.addBrowseFolderListener("Select Android SDK Path", "",
                 project, new FileChooserDescriptor(false, true, false, false, false, false));
+        myDxAutoTuningCheckBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateDxFields();
+            }
+        });
     }
 
     @Nls
@@ -35,10 +54,42 @@ public class AndroidFacetEditorTab extends FacetEditorTab {
     }
 
     public boolean isModified() {
-        return !Comparing.strEqual(mySdkPathField.getText(), myConfiguration.getSdkPath(), true);
+        return !Comparing.strEqual(mySdkPathField.getText(), myConfiguration.getSdkPath(), true) ||
+                !Comparing.strEqual(myBuildThreadsField.getText().trim(), Integer.toString(myConfiguration.BUILD_THREADS)) ||
+                mySingleRSourceRootCheckBox.isSelected() != myConfiguration.SINGLE_R_SOURCE_ROOT ||
+                myInProcessRJavaCheckBox.isSelected() != myConfiguration.IN_PROCESS_R_JAVA ||
+                myContentHashValidityCheckBox.isSelected() != myConfiguration.CONTENT_HASH_VALIDITY ||
+                myIncrementalDexCheckBox.isSelected() != myConfiguration.INCREMENTAL_DEX ||
+                myDxInProcessCheckBox.isSelected() != myConfiguration.DX_IN_PROCESS ||
+                myDxAutoTuningCheckBox.isSelected() != myConfiguration.DX_AUTO_TUNING ||
+                !Comparing.strEqual(myDxHeapSizeField.getText().trim(), Integer.toString(myConfiguration.DX_HEAP_SIZE)) ||
+                !Comparing.strEqual(myDxThreadsField.getText().trim(), Integer.toString(myConfiguration.DX_THREADS)) ||
+                !Comparing.strEqual(myDxJvmOptionsField.getText().trim(), myConfiguration.DX_JVM_OPTIONS) ||
+                myDxNoOptimizeCheckBox.isSelected() != myConfiguration.DX_NO_OPTIMIZE ||
+                !Comparing.strEqual(myResourceQualifiersField.getText().trim(), myConfiguration.RESOURCE_QUALIFIERS);
     }
 
     public void apply() throws ConfigurationException {
+        // everything is validated before anything is assigned, so that an invalid field leaves the configuration as it was
+        int buildThreads = parseNonNegativeInt(myBuildThreadsField.getText(), "Build threads");
+        int dxHeapSize = parsePositiveInt(myDxHeapSizeField.getText(), "dx heap size");
+        int dxThreads = parsePositiveInt(myDxThreadsField.getText(), "dx threads");
+        String qualifiers = myResourceQualifiersField.getText().trim();
+        if (ResourceQualifiers.parse(qualifiers) == null) {
+            throw new ConfigurationException("Unknown or misordered configuration qualifiers: " + qualifiers);
+        }
+        myConfiguration.BUILD_THREADS = buildThreads;
+        myConfiguration.SINGLE_R_SOURCE_ROOT = mySingleRSourceRootCheckBox.isSelected();
+        myConfiguration.IN_PROCESS_R_JAVA = myInProcessRJavaCheckBox.isSelected();
+        myConfiguration.CONTENT_HASH_VALIDITY = myContentHashValidityCheckBox.isSelected();
+        myConfiguration.INCREMENTAL_DEX = myIncrementalDexCheckBox.isSelected();
+        myConfiguration.DX_IN_PROCESS = myDxInProcessCheckBox.isSelected();
+        myConfiguration.DX_AUTO_TUNING = myDxAutoTuningCheckBox.isSelected();
+        myConfiguration.DX_HEAP_SIZE = dxHeapSize;
+        myConfiguration.DX_THREADS = dxThreads;
+        myConfiguration.DX_JVM_OPTIONS = myDxJvmOptionsField.getText().trim();
+        myConfiguration.DX_NO_OPTIMIZE = myDxNoOptimizeCheckBox.isSelected();
+        myConfiguration.RESOURCE_QUALIFIERS = qualifiers;
         myConfiguration.setSdkPath(mySdkPathField.getText());
         PropertiesComponent.getInstance().setValue(AndroidFacetConfiguration.DEFAULT_SDK_PATH_PROPERTY,
                 myConfiguration.getSdkPath());
@@ -46,6 +97,50 @@ public class AndroidFacetEditorTab extends FacetEditorTab {
 
     public void reset() {
         mySdkPathField.setText(myConfiguration.getSdkPath());
+        myBuildThreadsField.setText(Integer.toString(myConfiguration.BUILD_THREADS));
+        mySingleRSourceRootCheckBox.setSelected(myConfiguration.SINGLE_R_SOURCE_ROOT);
+        myInProcessRJavaCheckBox.setSelected(myConfiguration.IN_PROCESS_R_JAVA);
+        myContentHashValidityCheckBox.setSelected(myConfiguration.CONTENT_HASH_VALIDITY);
+        myIncrementalDexCheckBox.setSelected(myConfiguration.INCREMENTAL_DEX);
+        myDxInProcessCheckBox.setSelected(myConfiguration.DX_IN_PROCESS);
+        myDxAutoTuningCheckBox.setSelected(myConfiguration.DX_AUTO_TUNING);
+        myDxHeapSizeField.setText(Integer.toString(myConfiguration.DX_HEAP_SIZE));
+        myDxThreadsField.setText(Integer.toString(myConfiguration.DX_THREADS));
+        myDxJvmOptionsField.setText(myConfiguration.DX_JVM_OPTIONS);
+        myDxNoOptimizeCheckBox.setSelected(myConfiguration.DX_NO_OPTIMIZE);
+        myResourceQualifiersField.setText(myConfiguration.RESOURCE_QUALIFIERS);
+        updateDxFields();
+    }
+
+    /**
+     * Heap size and threads are chosen by dx tuning when it is automatic.
+     */
+    private void updateDxFields() {
+        boolean manual = !myDxAutoTuningCheckBox.isSelected();
+        myDxHeapSizeField.setEnabled(manual);
+        myDxThreadsField.setEnabled(manual);
+    }
+
+    private static int parseNonNegativeInt(String text, String fieldName) throws ConfigurationException {
+        try {
+            int value = Integer.parseInt(text.trim());
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ConfigurationException(fieldName + " must be a non-negative number");
+    }
+
+    private static int parsePositiveInt(String text, String fieldName) throws ConfigurationException {
+        try {
+            int value = Integer.parseInt(text.trim());
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ConfigurationException(fieldName + " must be a positive number");
     }
 
     public void disposeUIResources() {
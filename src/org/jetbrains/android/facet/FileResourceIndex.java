@@ -0,0 +1,154 @@
+package org.jetbrains.android.facet;
+
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.util.ResourceFileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Index of the file-based resources of a resources directory: resource type and name to the files of the resource in
+ * all {@code <type>[-qualifiers]} directories. The resource name of a file is its name up to the first dot, so
+ * {@code icon.png} and {@code icon.9.png} both are {@code icon}. The directories are listed once; after that only files
+ * reported changed by {@link #markDirty} are looked at again.
+ *
+ * @author Alexey Efimov
+ */
+final class FileResourceIndex {
+    private final String myResourcesPath;
+    /**
+     * type -> name -> paths, each list ordered by directory with the directory without qualifiers first
+     */
+    private final Map<String, Map<String, List<String>>> myTypes = new HashMap<String, Map<String, List<String>>>();
+    private final Set<String> myDirtyPaths = new HashSet<String>();
+    private boolean myScanNeeded = true;
+
+    FileResourceIndex(@NotNull String resourcesPath) {
+        myResourcesPath = resourcesPath;
+    }
+
+    /**
+     * Marks the file dirty if it is in a resource type directory; a change of a directory makes the whole resources
+     * directory listed again.
+     */
+    synchronized void markDirty(@NotNull String path, boolean directory) {
+        if (myResourcesPath.equals(path) || myResourcesPath.startsWith(path + "/")) {
+            myScanNeeded = true;
+        }
+        else if (path.startsWith(myResourcesPath + "/")) {
+            if (directory) {
+                myScanNeeded = true;
+            }
+            else {
+                myDirtyPaths.add(path);
+            }
+        }
+    }
+
+    /**
+     * Returns the files of the resource, the one in the directory without qualifiers first.
+     */
+    @NotNull
+    synchronized List<String> getPaths(@NotNull String type, @NotNull String name) {
+        update();
+        Map<String, List<String>> names = myTypes.get(type);
+        List<String> paths = names != null ? names.get(name) : null;
+        return paths != null ? new ArrayList<String>(paths) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns the names of the file-based resources of the type.
+     */
+    @NotNull
+    synchronized Set<String> getNames(@NotNull String type) {
+        update();
+        Map<String, List<String>> names = myTypes.get(type);
+        return names != null ? new HashSet<String>(names.keySet()) : Collections.<String>emptySet();
+    }
+
+    private void update() {
+        if (myScanNeeded) {
+            myScanNeeded = false;
+            myDirtyPaths.clear();
+            scan();
+        }
+        else if (!myDirtyPaths.isEmpty()) {
+            for (String path : myDirtyPaths) {
+                remove(path);
+                VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+                if (file != null && isResourceFile(file)) {
+                    add(file);
+                }
+            }
+            myDirtyPaths.clear();
+        }
+    }
+
+    private void scan() {
+        myTypes.clear();
+        VirtualFile resourcesDir = LocalFileSystem.getInstance().findFileByPath(myResourcesPath);
+        if (resourcesDir == null) return;
+        for (VirtualFile dir : resourcesDir.getChildren()) {
+            if (!dir.isDirectory() || ValueResourceIndex.isValuesDir(dir.getName())) continue;
+            for (VirtualFile file : dir.getChildren()) {
+                if (isResourceFile(file)) {
+                    add(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the file is a file of a resource type directory.
+     */
+    private boolean isResourceFile(@NotNull VirtualFile file) {
+        VirtualFile dir = file.getParent();
+        return !file.isDirectory() && !file.getName().startsWith(".") && dir != null && dir.getParent() != null &&
+                myResourcesPath.equals(dir.getParent().getPath()) &&
+                !ValueResourceIndex.isValuesDir(dir.getName());
+    }
+
+    private void add(@NotNull VirtualFile file) {
+        String type = ResourceFileUtil.getResourceType(file.getParent().getName());
+        Map<String, List<String>> names = myTypes.get(type);
+        if (names == null) {
+            names = new HashMap<String, List<String>>();
+            myTypes.put(type, names);
+        }
+        String name = ResourceFileUtil.getResourceName(file.getName());
+        List<String> paths = names.get(name);
+        if (paths == null) {
+            paths = new ArrayList<String>(1);
+            names.put(name, paths);
+        }
+        String path = file.getPath();
+        int index = 0;
+        while (index < paths.size() && comparePaths(paths.get(index), path) < 0) {
+            index++;
+        }
+        paths.add(index, path);
+    }
+
+    private void remove(@NotNull String path) {
+        int slash = path.lastIndexOf('/');
+        int dirSlash = path.lastIndexOf('/', slash - 1);
+        if (dirSlash < 0) return;
+        Map<String, List<String>> names = myTypes.get(ResourceFileUtil.getResourceType(path.substring(dirSlash + 1, slash)));
+        if (names == null) return;
+        String name = ResourceFileUtil.getResourceName(path.substring(slash + 1));
+        List<String> paths = names.get(name);
+        if (paths != null && paths.remove(path) && paths.isEmpty()) {
+            names.remove(name);
+        }
+    }
+
+    /**
+     * Orders files by their directory, the directory without qualifiers first, then by name.
+     */
+    private static int comparePaths(String path1, String path2) {
+        int result = ResourceFileUtil.DIR_NAME_COMPARATOR.compare(ResourceResolver.getDirName(path1),
+                ResourceResolver.getDirName(path2));
+        return result != 0 ? result : path1.compareTo(path2);
+    }
+}
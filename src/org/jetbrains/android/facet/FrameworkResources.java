@@ -0,0 +1,118 @@
+package org.jetbrains.android.facet;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.dom.attrs.AttributeDefinitions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Application-wide cache of the framework resources of Android SDKs: the value and file resource indices of the SDK
+ * resources directory and the parsed attrs definitions. Entries are keyed by SDK paths, so all facets using an SDK
+ * share them and they are built once per SDK instead of once per module.
+ *
+ * @author Alexey Efimov
+ */
+public final class FrameworkResources {
+    private static final FrameworkResources ourInstance = new FrameworkResources();
+
+    /**
+     * Value resource indices by the path of the SDK resources directory.
+     */
+    private final Map<String, ValueResourceIndex> myValueResourceIndices = new HashMap<String, ValueResourceIndex>();
+    /**
+     * File resource indices by the path of the SDK resources directory.
+     */
+    private final Map<String, FileResourceIndex> myFileResourceIndices = new HashMap<String, FileResourceIndex>();
+    /**
+     * Parsed attrs definitions by the path of the attrs file.
+     */
+    private final Map<String, DefinitionsEntry> myAttributeDefinitions = new HashMap<String, DefinitionsEntry>();
+
+    private FrameworkResources() {
+    }
+
+    public static FrameworkResources getInstance() {
+        return ourInstance;
+    }
+
+    @NotNull
+    ValueResourceIndex getValueResourceIndex(@NotNull VirtualFile sdkResourcesDir) {
+        synchronized (myValueResourceIndices) {
+            ValueResourceIndex index = myValueResourceIndices.get(sdkResourcesDir.getPath());
+            if (index == null) {
+                index = new ValueResourceIndex(sdkResourcesDir.getPath());
+                myValueResourceIndices.put(sdkResourcesDir.getPath(), index);
+            }
+            return index;
+        }
+    }
+
+    @NotNull
+    FileResourceIndex getFileResourceIndex(@NotNull VirtualFile sdkResourcesDir) {
+        synchronized (myFileResourceIndices) {
+            FileResourceIndex index = myFileResourceIndices.get(sdkResourcesDir.getPath());
+            if (index == null) {
+                index = new FileResourceIndex(sdkResourcesDir.getPath());
+                myFileResourceIndices.put(sdkResourcesDir.getPath(), index);
+            }
+            return index;
+        }
+    }
+
+    void resourceChanged(@NotNull String path, boolean directory) {
+        synchronized (myValueResourceIndices) {
+            for (ValueResourceIndex index : myValueResourceIndices.values()) {
+                index.markDirty(path, directory);
+            }
+        }
+        synchronized (myFileResourceIndices) {
+            for (FileResourceIndex index : myFileResourceIndices.values()) {
+                index.markDirty(path, directory);
+            }
+        }
+    }
+
+    /**
+     * Returns the definitions of the attrs file of an SDK, parsing them if the file changed since they were parsed.
+     * The definitions are shared by all facets using the SDK, so they must not be changed.
+     *
+     * @param parser parses the definitions, may return null if the file can't be parsed
+     */
+    @Nullable
+    public synchronized AttributeDefinitions getAttributeDefinitions(@NotNull VirtualFile attrsFile,
+                                                                     @NotNull Computable<AttributeDefinitions> parser) {
+        String key = attrsFile.getPath();
+        DefinitionsEntry entry = myAttributeDefinitions.get(key);
+        if (entry != null && entry.myModificationStamp == attrsFile.getModificationStamp()) {
+            return entry.myDefinitions;
+        }
+        long modificationStamp = attrsFile.getModificationStamp();
+        AttributeDefinitions definitions = parser.compute();
+        if (definitions != null) {
+            myAttributeDefinitions.put(key, new DefinitionsEntry(modificationStamp, definitions));
+        }
+        return definitions;
+    }
+
+    public void save() {
+        synchronized (myValueResourceIndices) {
+            for (ValueResourceIndex index : myValueResourceIndices.values()) {
+                index.save();
+            }
+        }
+    }
+
+    private static final class DefinitionsEntry {
+        private final long myModificationStamp;
+        private final AttributeDefinitions myDefinitions;
+
+        private DefinitionsEntry(long modificationStamp, AttributeDefinitions definitions) {
+            myModificationStamp = modificationStamp;
+            myDefinitions = definitions;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jetbrains.android.facet;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.*;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiTreeChangeAdapter;
+import com.intellij.psi.PsiTreeChangeEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reports changes of files on disk and of PSI of open files to the resource indices of a facet, see
+ * {@link AndroidFacet#resourceChanged}.
+ *
+ * @author Alexey Efimov
+ */
+final class ResourceChangeListener {
+    private final AndroidFacet myFacet;
+    private final VirtualFileListener myFileListener = new FileListener();
+    private final PsiTreeChangeAdapter myPsiListener = new PsiListener();
+    private Project myProject;
+
+    ResourceChangeListener(@NotNull AndroidFacet facet) {
+        myFacet = facet;
+    }
+
+    void register(@NotNull Project project) {
+        myProject = project;
+        VirtualFileManager.getInstance().addVirtualFileListener(myFileListener);
+        PsiManager.getInstance(project).addPsiTreeChangeListener(myPsiListener);
+    }
+
+    void unregister() {
+        if (myProject == null) return;
+        VirtualFileManager.getInstance().removeVirtualFileListener(myFileListener);
+        PsiManager.getInstance(myProject).removePsiTreeChangeListener(myPsiListener);
+        myProject = null;
+    }
+
+    private void changed(@Nullable VirtualFile file) {
+        if (file != null && file.isInLocalFileSystem()) {
+            myFacet.resourceChanged(file.getPath(), file.isDirectory());
+        }
+    }
+
+    private final class FileListener extends VirtualFileAdapter {
+        @Override
+        public void contentsChanged(VirtualFileEvent event) {
+            changed(event.getFile());
+        }
+
+        @Override
+        public void fileCreated(VirtualFileEvent event) {
+            changed(event.getFile());
+        }
+
+        @Override
+        public void fileDeleted(VirtualFileEvent event) {
+            changed(event.getFile());
+        }
+
+        @Override
+        public void fileMoved(VirtualFileMoveEvent event) {
+            changed(event.getOldParent());
+            changed(event.getNewParent());
+        }
+
+        @Override
+        public void propertyChanged(VirtualFilePropertyEvent event) {
+            if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+                changed(event.getFile().getParent());
+                if (event.getFile().isDirectory()) {
+                    changed(event.getFile());
+                }
+            }
+        }
+    }
+
+    private final class PsiListener extends PsiTreeChangeAdapter {
+        @Override
+        public void childAdded(PsiTreeChangeEvent event) {
+            psiChanged(event);
+        }
+
+        @Override
+        public void childRemoved(PsiTreeChangeEvent event) {
+            psiChanged(event);
+        }
+
+        @Override
+        public void childReplaced(PsiTreeChangeEvent event) {
+            psiChanged(event);
+        }
+
+        @Override
+        public void childMoved(PsiTreeChangeEvent event) {
+            psiChanged(event);
+        }
+
+        @Override
+        public void childrenChanged(PsiTreeChangeEvent event) {
+            psiChanged(event);
+        }
+
+        private void psiChanged(PsiTreeChangeEvent event) {
+            PsiFile file = event.getFile();
+            if (file != null) {
+                changed(file.getVirtualFile());
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.jetbrains.android.facet;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Configuration qualifiers of a resource directory, such as {@code fr-rFR-land-hdpi}, or of a device. Every qualifier
+ * dimension is kept as one int, 0 meaning the dimension isn't specified; dimensions are indexed in the order of their
+ * precedence in resource selection, which is also the order they have to appear in a directory name.
+ *
+ * @author Alexey Efimov
+ */
+final class ResourceQualifiers {
+    static final int MCC = 0;
+    static final int MNC = 1;
+    static final int LANGUAGE = 2;
+    static final int REGION = 3;
+    static final int SCREEN_SIZE = 4;
+    static final int ORIENTATION = 5;
+    static final int DENSITY = 6;
+    static final int TOUCHSCREEN = 7;
+    static final int KEYBOARD = 8;
+    static final int TEXT_INPUT = 9;
+    static final int NAVIGATION = 10;
+    static final int SCREEN_DIMENSION = 11;
+    static final int VERSION = 12;
+    static final int DIMENSION_COUNT = 13;
+
+    /**
+     * Density of resources without a density qualifier.
+     */
+    static final int DEFAULT_DENSITY = 160;
+    static final int NO_DENSITY = 0xffff;
+
+    @NonNls
+    private static final String[][] ourKeywords = new String[DIMENSION_COUNT][];
+
+    static {
+        ourKeywords[SCREEN_SIZE] = new String[]{"small", "normal", "large"};
+        ourKeywords[ORIENTATION] = new String[]{"port", "land", "square"};
+        ourKeywords[TOUCHSCREEN] = new String[]{"notouch", "stylus", "finger"};
+        ourKeywords[KEYBOARD] = new String[]{"keysexposed", "keyshidden", "keyssoft"};
+        ourKeywords[TEXT_INPUT] = new String[]{"nokeys", "qwerty", "12key"};
+        ourKeywords[NAVIGATION] = new String[]{"nonav", "dpad", "trackball", "wheel"};
+    }
+
+    static final ResourceQualifiers NONE = new ResourceQualifiers(new int[DIMENSION_COUNT]);
+
+    private final int[] myValues;
+
+    private ResourceQualifiers(int[] values) {
+        myValues = values;
+    }
+
+    /**
+     * Returns the qualifiers of a directory of the resources directory, or null if the name has qualifiers which aren't
+     * known or are out of order, in which case aapt ignores the directory too.
+     */
+    @Nullable
+    static ResourceQualifiers parseDirName(@NotNull String dirName) {
+        int dash = dirName.indexOf('-');
+        return dash > 0 ? parse(dirName.substring(dash + 1)) : NONE;
+    }
+
+    /**
+     * Parses qualifiers separated by dashes, returns null if a qualifier isn't known or is out of order.
+     */
+    @Nullable
+    static ResourceQualifiers parse(@NotNull String qualifiers) {
+        int[] values = new int[DIMENSION_COUNT];
+        if (qualifiers.trim().length() == 0) return NONE;
+        int dimension = 0;
+        for (String qualifier : qualifiers.trim().split("-")) {
+            while (dimension < DIMENSION_COUNT && (values[dimension] = parse(dimension, qualifier)) == 0) {
+                dimension++;
+            }
+            if (dimension == DIMENSION_COUNT) return null;
+            dimension++;
+        }
+        return new ResourceQualifiers(values);
+    }
+
+    /**
+     * Returns the value of the qualifier in the dimension, or 0 if it isn't a qualifier of the dimension.
+     */
+    private static int parse(int dimension, String qualifier) {
+        switch (dimension) {
+            case MCC:
+                return parseNumber(qualifier, "mcc");
+            case MNC:
+                return parseNumber(qualifier, "mnc");
+            case LANGUAGE:
+                return qualifier.length() == 2 && isLowerCase(qualifier) ? pack(qualifier) : 0;
+            case REGION:
+                return qualifier.length() == 3 && qualifier.charAt(0) == 'r' && isUpperCase(qualifier.substring(1))
+                        ? pack(qualifier.substring(1)) : 0;
+            case DENSITY:
+                if ("ldpi".equals(qualifier)) return 120;
+                if ("mdpi".equals(qualifier)) return 160;
+                if ("hdpi".equals(qualifier)) return 240;
+                if ("nodpi".equals(qualifier)) return NO_DENSITY;
+                return qualifier.endsWith("dpi") ? parseNumber(qualifier.substring(0, qualifier.length() - 3), "") : 0;
+            case SCREEN_DIMENSION:
+                int x = qualifier.indexOf('x');
+                if (x <= 0) return 0;
+                int first = parseNumber(qualifier.substring(0, x), "");
+                int second = parseNumber(qualifier.substring(x + 1), "");
+                return first > 0 && second > 0 && first < 0x10000 && second < 0x10000
+                        ? (Math.max(first, second) << 16) | Math.min(first, second) : 0;
+            case VERSION:
+                return parseNumber(qualifier, "v");
+            default:
+                String[] keywords = ourKeywords[dimension];
+                for (int i = 0; i < keywords.length; i++) {
+                    if (keywords[i].equals(qualifier)) return i + 1;
+                }
+                return 0;
+        }
+    }
+
+    private static int parseNumber(String qualifier, String prefix) {
+        if (!qualifier.startsWith(prefix) || qualifier.length() == prefix.length() ||
+                qualifier.length() - prefix.length() > 4) {
+            return 0;
+        }
+        int result = 0;
+        for (int i = prefix.length(); i < qualifier.length(); i++) {
+            char c = qualifier.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            result = result * 10 + c - '0';
+        }
+        return result;
+    }
+
+    private static boolean isLowerCase(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < 'a' || s.charAt(i) > 'z') return false;
+        }
+        return true;
+    }
+
+    private static boolean isUpperCase(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < 'A' || s.charAt(i) > 'Z') return false;
+        }
+        return true;
+    }
+
+    private static int pack(String code) {
+        return (code.charAt(0) << 8) | code.charAt(1);
+    }
+
+    int get(int dimension) {
+        return myValues[dimension];
+    }
+
+    /**
+     * Returns false if a resource with these qualifiers can't be used on the device: a qualifier of the device is
+     * different, or the resource needs a newer platform version. Density never excludes a resource, it is scaled.
+     */
+    boolean isCompatible(@NotNull ResourceQualifiers device) {
+        for (int dimension = 0; dimension < DIMENSION_COUNT; dimension++) {
+            int value = myValues[dimension];
+            int deviceValue = device.myValues[dimension];
+            if (value == 0 || deviceValue == 0 || dimension == DENSITY) continue;
+            if (dimension == VERSION ? value > deviceValue : value != deviceValue) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how well resources of the density suit the device, the lower the better. Resources of a higher density
+     * are preferred to lower ones, as scaling them down looks better than scaling up.
+     */
+    int getDensityDistance(@NotNull ResourceQualifiers device) {
+        int density = myValues[DENSITY] != 0 ? myValues[DENSITY] : DEFAULT_DENSITY;
+        int deviceDensity = device.myValues[DENSITY] != 0 ? device.myValues[DENSITY] : DEFAULT_DENSITY;
+        if (density == NO_DENSITY) return 0;
+        return density >= deviceDensity ? density - deviceDensity : 2 * (deviceDensity - density);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ResourceQualifiers && Arrays.equals(myValues, ((ResourceQualifiers) o).myValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(myValues);
+    }
+}
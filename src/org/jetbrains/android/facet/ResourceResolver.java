@@ -0,0 +1,130 @@
+package org.jetbrains.android.facet;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Chooses among the variants of a resource in {@code <type>[-qualifiers]} directories the one a device with the given
+ * configuration would use. Variants incompatible with the device are dropped; then, dimension by dimension in the order
+ * of precedence, if some variants specify the dimension the others are dropped. The choice depends on the directory
+ * names of the variants only, so it is cached per set of directory names and never becomes stale.
+ *
+ * @author Alexey Efimov
+ */
+final class ResourceResolver {
+    private final ResourceQualifiers myDevice;
+    private final Map<String, ResourceQualifiers> myDirQualifiers = new HashMap<String, ResourceQualifiers>();
+    /**
+     * Sorted directory names of variants, separated by slashes, to the chosen directory name.
+     */
+    private final Map<String, String> myChoices = new HashMap<String, String>();
+
+    ResourceResolver(@NotNull ResourceQualifiers device) {
+        myDevice = device;
+    }
+
+    /**
+     * Returns the paths of the variants of a resource with the best matching one first, or an empty list if none of
+     * them can be used on the device.
+     */
+    @NotNull
+    List<String> order(@NotNull List<String> paths) {
+        if (paths.isEmpty()) return paths;
+        SortedSet<String> dirNames = new TreeSet<String>();
+        for (String path : paths) {
+            dirNames.add(getDirName(path));
+        }
+        String best = choose(dirNames);
+        if (best == null) return Collections.emptyList();
+        List<String> result = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            if (best.equals(getDirName(path))) {
+                result.add(path);
+            }
+        }
+        for (String path : paths) {
+            if (!best.equals(getDirName(path))) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    static String getDirName(@NotNull String path) {
+        int slash = path.lastIndexOf('/');
+        return path.substring(path.lastIndexOf('/', slash - 1) + 1, slash);
+    }
+
+    @Nullable
+    private synchronized String choose(@NotNull SortedSet<String> dirNames) {
+        StringBuilder key = new StringBuilder();
+        for (String dirName : dirNames) {
+            key.append(dirName).append('/');
+        }
+        String cacheKey = key.toString();
+        if (myChoices.containsKey(cacheKey)) {
+            return myChoices.get(cacheKey);
+        }
+        String choice = doChoose(dirNames);
+        myChoices.put(cacheKey, choice);
+        return choice;
+    }
+
+    @Nullable
+    private String doChoose(@NotNull SortedSet<String> dirNames) {
+        List<String> candidates = new ArrayList<String>(dirNames.size());
+        for (String dirName : dirNames) {
+            ResourceQualifiers qualifiers = getQualifiers(dirName);
+            if (qualifiers != null && qualifiers.isCompatible(myDevice)) {
+                candidates.add(dirName);
+            }
+        }
+        for (int dimension = 0; dimension < ResourceQualifiers.DIMENSION_COUNT && candidates.size() > 1; dimension++) {
+            if (dimension == ResourceQualifiers.DENSITY) {
+                candidates = chooseDensity(candidates);
+                continue;
+            }
+            if (myDevice.get(dimension) == 0) continue;
+            // the most specific matching variants, i.e. for the platform version the highest one
+            int best = 0;
+            for (String candidate : candidates) {
+                best = Math.max(best, getQualifiers(candidate).get(dimension));
+            }
+            if (best == 0) continue;
+            List<String> specified = new ArrayList<String>(candidates.size());
+            for (String candidate : candidates) {
+                if (getQualifiers(candidate).get(dimension) == best) {
+                    specified.add(candidate);
+                }
+            }
+            candidates = specified;
+        }
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+    private List<String> chooseDensity(List<String> candidates) {
+        int best = Integer.MAX_VALUE;
+        for (String candidate : candidates) {
+            best = Math.min(best, getQualifiers(candidate).getDensityDistance(myDevice));
+        }
+        List<String> result = new ArrayList<String>(candidates.size());
+        for (String candidate : candidates) {
+            if (getQualifiers(candidate).getDensityDistance(myDevice) == best) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    private ResourceQualifiers getQualifiers(String dirName) {
+        ResourceQualifiers qualifiers = myDirQualifiers.get(dirName);
+        if (qualifiers == null && !myDirQualifiers.containsKey(dirName)) {
+            qualifiers = ResourceQualifiers.parseDirName(dirName);
+            myDirQualifiers.put(dirName, qualifiers);
+        }
+        return qualifiers;
+    }
+}
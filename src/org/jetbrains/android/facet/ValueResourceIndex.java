@@ -0,0 +1,495 @@
+package org.jetbrains.android.facet;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.util.ResourceFileUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index of the value resources declared in the {@code values[-qualifiers]} directories of a resources directory:
+ * resource type and name to the files and lines declaring it, in all configurations. Files are parsed once and only
+ * again after a VFS or PSI change marked them dirty, see {@link #markDirty}; the index is kept on disk between
+ * sessions, files which didn't change since are not parsed at all.
+ * <p/>
+ * {@link #markDirty} is called from within write actions, so the index never takes a read action while holding its
+ * monitor: files are chosen under the monitor, parsed without it and put into the index under it again.
+ *
+ * @author Alexey Efimov
+ */
+final class ValueResourceIndex {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.facet.ValueResourceIndex");
+
+    private static final int VERSION = 2;
+    @NonNls
+    static final String VALUES_DIR = "values";
+    @NonNls
+    private static final String INDEX_DIR = "android" + File.separator + "resources";
+    /**
+     * Stamp of entries read from an unsaved document, they are never reused in another session.
+     */
+    private static final long UNSAVED = -1;
+
+    private final String myResourcesPath;
+    private final File myStorageFile;
+    /**
+     * Held while the index is updated, so that a reader waits for the files another reader is parsing.
+     */
+    private final Object myUpdateLock = new Object();
+
+    /**
+     * path -> declarations of the file
+     */
+    private final Map<String, FileEntry> myFiles = new HashMap<String, FileEntry>();
+    /**
+     * type -> name -> declarations, each list ordered by path and line
+     */
+    private final Map<String, Map<String, List<Location>>> myTypes = new HashMap<String, Map<String, List<Location>>>();
+    private final Set<String> myDirtyPaths = new HashSet<String>();
+    private boolean myScanNeeded = true;
+    private boolean myLoaded;
+    private boolean myModified;
+
+    ValueResourceIndex(@NotNull String resourcesPath) {
+        myResourcesPath = resourcesPath;
+        myStorageFile = new File(new File(PathManager.getSystemPath(), INDEX_DIR),
+                getStorageName(resourcesPath) + ".dat");
+    }
+
+    /**
+     * Marks the file dirty if it is in a values directory; a change of a directory in the resources directory, or of
+     * the resources directory or one of its parents, makes the values directories scanned again.
+     */
+    synchronized void markDirty(@NotNull String path, boolean directory) {
+        if (myResourcesPath.equals(path) || myResourcesPath.startsWith(path + "/")) {
+            myScanNeeded = true;
+        }
+        else if (path.startsWith(myResourcesPath + "/")) {
+            if (directory) {
+                myScanNeeded = true;
+            }
+            else if (isValuesDir(path.substring(myResourcesPath.length() + 1, path.lastIndexOf('/')))) {
+                myDirtyPaths.add(path);
+            }
+        }
+    }
+
+    /**
+     * Escapes the path into a file name, different paths always get different names.
+     */
+    @NotNull
+    private static String getStorageName(@NotNull String path) {
+        StringBuilder builder = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '-') {
+                builder.append(c);
+            }
+            else if (c == '/') {
+                builder.append('_');
+            }
+            else {
+                builder.append('%').append(Integer.toHexString(c)).append(';');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns true if the directory of the resources directory holds value resources of some configuration.
+     */
+    static boolean isValuesDir(@NotNull String dirName) {
+        return VALUES_DIR.equals(ResourceFileUtil.getResourceType(dirName));
+    }
+
+    /**
+     * Returns the declarations of the resource, in the order of files and lines.
+     */
+    @NotNull
+    List<Location> getLocations(@NotNull String type, @NotNull String name) {
+        update();
+        synchronized (this) {
+            Map<String, List<Location>> names = myTypes.get(type);
+            List<Location> locations = names != null ? names.get(name) : null;
+            return locations != null ? new ArrayList<Location>(locations) : Collections.<Location>emptyList();
+        }
+    }
+
+    /**
+     * Returns the names of the resources of the type.
+     */
+    @NotNull
+    Set<String> getNames(@NotNull String type) {
+        update();
+        synchronized (this) {
+            Map<String, List<Location>> names = myTypes.get(type);
+            return names != null ? new HashSet<String>(names.keySet()) : Collections.<String>emptySet();
+        }
+    }
+
+    /**
+     * Returns the sorted paths of the files declaring resources of the type, or any resources if the type is null.
+     */
+    @NotNull
+    SortedSet<String> getPaths(@Nullable String type) {
+        update();
+        synchronized (this) {
+            SortedSet<String> result = new TreeSet<String>();
+            for (Map.Entry<String, FileEntry> entry : myFiles.entrySet()) {
+                if (entry.getValue().declares(type)) {
+                    result.add(entry.getKey());
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes the index to disk if it changed since it was loaded or saved.
+     */
+    synchronized void save() {
+        if (!myModified) return;
+        File parent = myStorageFile.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            LOG.info("Cannot create directory " + parent);
+            return;
+        }
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myStorageFile)));
+            try {
+                os.writeInt(VERSION);
+                os.writeUTF(myResourcesPath);
+                os.writeInt(myFiles.size());
+                for (Map.Entry<String, FileEntry> e : myFiles.entrySet()) {
+                    os.writeUTF(e.getKey());
+                    e.getValue().save(os);
+                }
+            } finally {
+                os.close();
+            }
+            myModified = false;
+        } catch (IOException e) {
+            LOG.info(e);
+        }
+    }
+
+    private void update() {
+        synchronized (myUpdateLock) {
+            List<VirtualFile> files;
+            synchronized (this) {
+                files = getFilesToIndex();
+            }
+            if (files.isEmpty()) return;
+            Map<VirtualFile, String> texts = getUnsavedTexts(files);
+            Map<String, FileEntry> entries = new HashMap<String, FileEntry>();
+            for (VirtualFile file : files) {
+                entries.put(file.getPath(), index(file, texts.get(file)));
+            }
+            synchronized (this) {
+                for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the files to parse and forgets deleted ones; a dirty file is always parsed, it may have an unsaved
+     * document.
+     */
+    @NotNull
+    private List<VirtualFile> getFilesToIndex() {
+        if (!myLoaded) {
+            myLoaded = true;
+            if (myStorageFile.isFile()) {
+                load();
+            }
+        }
+        List<VirtualFile> result = new ArrayList<VirtualFile>();
+        if (myScanNeeded) {
+            myScanNeeded = false;
+            myDirtyPaths.clear();
+            scan(result);
+        }
+        else if (!myDirtyPaths.isEmpty()) {
+            for (String path : myDirtyPaths) {
+                VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+                if (file != null && isValuesFile(file)) {
+                    result.add(file);
+                }
+                else {
+                    remove(path);
+                }
+            }
+            myDirtyPaths.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Collects the files of the values directories which changed since they were indexed and forgets deleted ones.
+     */
+    private void scan(@NotNull List<VirtualFile> result) {
+        VirtualFile resourcesDir = LocalFileSystem.getInstance().findFileByPath(myResourcesPath);
+        Set<String> paths = new HashSet<String>();
+        if (resourcesDir != null && resourcesDir.isDirectory()) {
+            for (VirtualFile valuesDir : resourcesDir.getChildren()) {
+                if (!valuesDir.isDirectory() || !isValuesDir(valuesDir.getName())) continue;
+                for (VirtualFile file : valuesDir.getChildren()) {
+                    if (isValuesFile(file)) {
+                        paths.add(file.getPath());
+                        FileEntry old = myFiles.get(file.getPath());
+                        if (old == null || old.myLength != file.getLength() || old.myTimestamp != file.getTimeStamp()) {
+                            result.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        for (String path : new ArrayList<String>(myFiles.keySet())) {
+            if (!paths.contains(path)) {
+                remove(path);
+            }
+        }
+    }
+
+    private static boolean isValuesFile(@NotNull VirtualFile file) {
+        return !file.isDirectory() && file.getName().endsWith(".xml");
+    }
+
+    /**
+     * Returns the texts of the unsaved documents of the files.
+     */
+    @NotNull
+    private static Map<VirtualFile, String> getUnsavedTexts(@NotNull final List<VirtualFile> files) {
+        return ApplicationManager.getApplication().runReadAction(new Computable<Map<VirtualFile, String>>() {
+            public Map<VirtualFile, String> compute() {
+                Map<VirtualFile, String> texts = new HashMap<VirtualFile, String>();
+                FileDocumentManager documentManager = FileDocumentManager.getInstance();
+                for (VirtualFile file : files) {
+                    Document document = documentManager.isFileModified(file) ? documentManager.getDocument(file) : null;
+                    if (document != null) {
+                        texts.put(file, document.getText());
+                    }
+                }
+                return texts;
+            }
+        });
+    }
+
+    /**
+     * Parses the unsaved text of the file if it has one, or else the file.
+     */
+    @NotNull
+    private FileEntry index(@NotNull VirtualFile file, @Nullable String text) {
+        long length = text != null ? UNSAVED : file.getLength();
+        long timestamp = text != null ? UNSAVED : file.getTimeStamp();
+        DeclarationCollector collector = new DeclarationCollector();
+        // a malformed file declares whatever was read before the error
+        ResourceFileUtil.parse(file, text, collector);
+        return new FileEntry(length, timestamp, collector.getTypes(), collector.getNames(), collector.getLines());
+    }
+
+    private void put(@NotNull String path, @NotNull FileEntry entry) {
+        remove(path);
+        myFiles.put(path, entry);
+        for (int i = 0; i < entry.myTypes.length; i++) {
+            Map<String, List<Location>> names = myTypes.get(entry.myTypes[i]);
+            if (names == null) {
+                names = new HashMap<String, List<Location>>();
+                myTypes.put(entry.myTypes[i], names);
+            }
+            List<Location> locations = names.get(entry.myNames[i]);
+            if (locations == null) {
+                locations = new ArrayList<Location>(1);
+                names.put(entry.myNames[i], locations);
+            }
+            Location location = new Location(path, entry.myLines[i]);
+            int index = Collections.binarySearch(locations, location);
+            locations.add(index < 0 ? -index - 1 : index, location);
+        }
+        myModified = true;
+    }
+
+    private void remove(@NotNull String path) {
+        FileEntry entry = myFiles.remove(path);
+        if (entry == null) return;
+        for (int i = 0; i < entry.myTypes.length; i++) {
+            Map<String, List<Location>> names = myTypes.get(entry.myTypes[i]);
+            List<Location> locations = names != null ? names.get(entry.myNames[i]) : null;
+            if (locations == null) continue;
+            for (Iterator<Location> it = locations.iterator(); it.hasNext();) {
+                if (it.next().getPath().equals(path)) {
+                    it.remove();
+                }
+            }
+            if (locations.isEmpty()) {
+                names.remove(entry.myNames[i]);
+            }
+        }
+        myModified = true;
+    }
+
+    private void load() {
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(myStorageFile)));
+            try {
+                if (is.readInt() != VERSION || !myResourcesPath.equals(is.readUTF())) return;
+                int count = is.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = is.readUTF();
+                    put(path, new FileEntry(is));
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            LOG.info(e);
+            myFiles.clear();
+            myTypes.clear();
+        }
+        myModified = false;
+    }
+
+    /**
+     * Declaration of a value resource.
+     */
+    static final class Location implements Comparable<Location> {
+        private final String myPath;
+        private final int myLine;
+
+        private Location(@NotNull String path, int line) {
+            myPath = path;
+            myLine = line;
+        }
+
+        @NotNull
+        String getPath() {
+            return myPath;
+        }
+
+        /**
+         * Returns the line of the declaring tag, starting with 1.
+         */
+        int getLine() {
+            return myLine;
+        }
+
+        public int compareTo(Location o) {
+            int result = myPath.compareTo(o.myPath);
+            return result != 0 ? result : myLine - o.myLine;
+        }
+    }
+
+    private static final class FileEntry {
+        private final long myLength;
+        private final long myTimestamp;
+        private final String[] myTypes;
+        private final String[] myNames;
+        private final int[] myLines;
+
+        private FileEntry(long length, long timestamp, String[] types, String[] names, int[] lines) {
+            myLength = length;
+            myTimestamp = timestamp;
+            myTypes = types;
+            myNames = names;
+            myLines = lines;
+        }
+
+        private FileEntry(DataInput is) throws IOException {
+            myLength = is.readLong();
+            myTimestamp = is.readLong();
+            int count = is.readInt();
+            myTypes = new String[count];
+            myNames = new String[count];
+            myLines = new int[count];
+            for (int i = 0; i < count; i++) {
+                myTypes[i] = is.readUTF().intern();
+                myNames[i] = is.readUTF();
+                myLines[i] = is.readInt();
+            }
+        }
+
+        private void save(DataOutput os) throws IOException {
+            os.writeLong(myLength);
+            os.writeLong(myTimestamp);
+            os.writeInt(myTypes.length);
+            for (int i = 0; i < myTypes.length; i++) {
+                os.writeUTF(myTypes[i]);
+                os.writeUTF(myNames[i]);
+                os.writeInt(myLines[i]);
+            }
+        }
+
+        private boolean declares(@Nullable String type) {
+            if (type == null) return myTypes.length > 0;
+            for (String t : myTypes) {
+                if (t.equals(type)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Collects the named children of {@code <resources>}.
+     */
+    private static final class DeclarationCollector extends DefaultHandler {
+        private final List<String> myTypes = new ArrayList<String>();
+        private final List<String> myNames = new ArrayList<String>();
+        private final List<Integer> myLines = new ArrayList<Integer>();
+        private Locator myLocator;
+        private int myDepth;
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            myLocator = locator;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            myDepth++;
+            if (myDepth != 2) return;
+            String name = attributes.getValue("name");
+            String type = "item".equals(qName) ? attributes.getValue("type") : qName;
+            if (name != null && type != null) {
+                myTypes.add(type.intern());
+                myNames.add(name);
+                myLines.add(myLocator != null ? myLocator.getLineNumber() : -1);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            myDepth--;
+        }
+
+        private String[] getTypes() {
+            return myTypes.toArray(new String[myTypes.size()]);
+        }
+
+        private String[] getNames() {
+            return myNames.toArray(new String[myNames.size()]);
+        }
+
+        private int[] getLines() {
+            int[] lines = new int[myLines.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = myLines.get(i);
+            }
+            return lines;
+        }
+    }
+}
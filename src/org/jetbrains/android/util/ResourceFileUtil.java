@@ -0,0 +1,90 @@
+package org.jetbrains.android.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Comparator;
+
+/**
+ * Naming rules of the files of a resources directory, shared by the resource indices of the facet and the compiler.
+ *
+ * @author Alexey Efimov
+ */
+public final class ResourceFileUtil {
+    private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.util.ResourceFileUtil");
+
+    private static final SAXParserFactory ourParserFactory = SAXParserFactory.newInstance();
+
+    static {
+        ourParserFactory.setNamespaceAware(false);
+    }
+
+    /**
+     * Orders directory names of the resources directory: the directory without qualifiers first, then by name.
+     */
+    public static final Comparator<String> DIR_NAME_COMPARATOR = new Comparator<String>() {
+        public int compare(String dirName1, String dirName2) {
+            boolean default1 = dirName1.indexOf('-') < 0;
+            boolean default2 = dirName2.indexOf('-') < 0;
+            if (default1 != default2) return default1 ? -1 : 1;
+            return dirName1.compareTo(dirName2);
+        }
+    };
+
+    private ResourceFileUtil() {
+    }
+
+    /**
+     * Returns the resource type of a directory of the resources directory, i.e. its name without qualifiers.
+     */
+    @NotNull
+    public static String getResourceType(@NotNull String dirName) {
+        int dash = dirName.indexOf('-');
+        return dash > 0 ? dirName.substring(0, dash) : dirName;
+    }
+
+    /**
+     * Returns the resource name of a file-based resource, i.e. the file name up to the first dot, so that both
+     * {@code icon.png} and {@code icon.9.png} are {@code icon}.
+     */
+    @NotNull
+    public static String getResourceName(@NotNull String fileName) {
+        int dot = fileName.indexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Parses the given text of the file, or the file itself if the text is null. A malformed file is reported to the
+     * handler up to the error; errors are only logged, aapt reports them itself.
+     */
+    public static void parse(@NotNull VirtualFile file, @Nullable String text, @NotNull DefaultHandler handler) {
+        try {
+            if (text != null) {
+                ourParserFactory.newSAXParser().parse(new InputSource(new StringReader(text)), handler);
+                return;
+            }
+            InputStream is = file.getInputStream();
+            try {
+                ourParserFactory.newSAXParser().parse(is, handler);
+            } finally {
+                is.close();
+            }
+        } catch (SAXException e) {
+            LOG.debug(e);
+        } catch (ParserConfigurationException e) {
+            LOG.error(e);
+        } catch (IOException e) {
+            LOG.info(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jetbrains.android.compiler;
+
+import junit.framework.TestCase;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.util.*;
+
+/**
+ * @author Alexey Efimov
+ */
+public class ResourceSymbolIndexTest extends TestCase {
+    public void testDeclareStyleable() throws Exception {
+        List<String> symbols = collect("attrs.xml", true);
+        assertContainsInOrder(symbols, "styleable/ShapeView", "styleable/ShapeView:shape",
+                "styleable/ShapeView:cornerRadius", "styleable/ShapeView:android:text", "styleable/ShapeView:fillMode");
+        // attrs of a styleable are declared too, unless they are framework ones
+        assertTrue(symbols.contains("attr/cornerRadius"));
+        assertTrue(symbols.contains("attr/fillMode"));
+        assertFalse(symbols.contains("attr/android:text"));
+        // an attr declared twice is one symbol
+        assertEquals(symbols.indexOf("attr/shape"), symbols.lastIndexOf("attr/shape"));
+    }
+
+    public void testAttrEnumAndFlagChildren() throws Exception {
+        List<String> symbols = collect("attrs.xml", true);
+        assertContainsInOrder(symbols, "attr/shape", "id/rectangle", "id/oval", "attr/gravity", "id/top", "id/bottom");
+        // also the children of an attr declared in a styleable
+        assertContainsInOrder(symbols, "attr/fillMode", "id/solid", "id/outline");
+        assertFalse(symbols.contains("id/shape"));
+    }
+
+    public void testNewIdsInLayout() throws Exception {
+        assertEquals(Arrays.asList("id/root", "id/title", "id/ok"), collect("layout.xml", false));
+    }
+
+    public void testItems() throws Exception {
+        assertEquals(Arrays.asList("id/selected", "drawable/background", "string/app_name", "array/planets"),
+                collect("items.xml", true));
+    }
+
+    public void testEditWithoutNewSymbolsKeepsDigest() throws Exception {
+        byte[] digest = getDigest("strings.xml");
+        assertTrue(Arrays.equals(digest, getDigest("strings_edited.xml")));
+        assertFalse(Arrays.equals(digest, getDigest("strings_added.xml")));
+    }
+
+    public void testReorderChangesDigest() throws Exception {
+        assertFalse(Arrays.equals(getDigest("strings.xml"), getDigest("strings_reordered.xml")));
+    }
+
+    private static List<String> collect(String fileName, boolean values) throws Exception {
+        Set<String> symbols = new LinkedHashSet<String>();
+        SAXParserFactory.newInstance().newSAXParser().parse(new File(getTestDataPath(), fileName),
+                new ResourceSymbolIndex.SymbolCollector(values, symbols));
+        return new ArrayList<String>(symbols);
+    }
+
+    private static byte[] getDigest(String fileName) throws Exception {
+        return ResourceSymbolsValidityState.getDigest(collect(fileName, true));
+    }
+
+    private static void assertContainsInOrder(List<String> symbols, String... expected) {
+        int index = -1;
+        for (String symbol : expected) {
+            int next = symbols.indexOf(symbol);
+            assertTrue(symbol + " in " + symbols, next > index);
+            index = next;
+        }
+    }
+
+    private static String getTestDataPath() {
+        return new File("testData/symbols").getAbsolutePath();
+    }
+}
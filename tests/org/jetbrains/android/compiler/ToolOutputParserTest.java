@@ -0,0 +1,55 @@
+package org.jetbrains.android.compiler;
+
+import junit.framework.TestCase;
+
+import java.util.regex.Matcher;
+
+/**
+ * @author Alexey Efimov
+ */
+public class ToolOutputParserTest extends TestCase {
+    public void testPathLineText() {
+        assertLocation("/work/res/layout/main.xml:12: error: No resource identifier found",
+                "/work/res/layout/main.xml", "12", null);
+    }
+
+    public void testPathLineSpaceText() {
+        assertLocation("/work/src/a/IService.aidl:7 syntax error don't know what to do with \"}\"",
+                "/work/src/a/IService.aidl", "7", null);
+    }
+
+    public void testPathLineColumnText() {
+        assertLocation("/work/res/values/strings.xml:3:14: error: Error parsing XML: not well-formed",
+                "/work/res/values/strings.xml", "3", "14");
+    }
+
+    public void testPathText() {
+        assertLocation("/work/res/drawable/icon.png: libpng error: Read Error", "/work/res/drawable/icon.png", null, null);
+    }
+
+    public void testWindowsPaths() {
+        assertLocation("C:\\work\\res\\layout\\main.xml:12: error: Resource entry main is already defined.",
+                "C:\\work\\res\\layout\\main.xml", "12", null);
+        assertLocation("c:\\work\\src\\a\\IService.aidl:7 syntax error", "c:\\work\\src\\a\\IService.aidl", "7", null);
+        assertLocation("C:\\work\\res\\values\\strings.xml:3:14: error", "C:\\work\\res\\values\\strings.xml", "3", "14");
+        assertLocation("C:\\work\\res\\drawable\\icon.png: libpng error", "C:\\work\\res\\drawable\\icon.png", null, null);
+    }
+
+    public void testNoLocation() {
+        assertNoLocation("trouble processing \"java/lang/Object.class\"");
+        assertNoLocation("1 error");
+        assertNoLocation("");
+    }
+
+    private static void assertLocation(String line, String path, String lineNumber, String column) {
+        Matcher matcher = ToolOutputParser.ourLocationPattern.matcher(line);
+        assertTrue(line, matcher.lookingAt());
+        assertEquals(path, matcher.group(1));
+        assertEquals(lineNumber, matcher.group(2));
+        assertEquals(column, matcher.group(3));
+    }
+
+    private static void assertNoLocation(String line) {
+        assertFalse(line, ToolOutputParser.ourLocationPattern.matcher(line).lookingAt());
+    }
+}
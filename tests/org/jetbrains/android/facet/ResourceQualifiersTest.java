@@ -0,0 +1,106 @@
+package org.jetbrains.android.facet;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Alexey Efimov
+ */
+public class ResourceQualifiersTest extends TestCase {
+    public void testEmpty() {
+        assertEquals(ResourceQualifiers.NONE, ResourceQualifiers.parse(""));
+        assertEquals(ResourceQualifiers.NONE, ResourceQualifiers.parse("  "));
+        assertEquals(ResourceQualifiers.NONE, ResourceQualifiers.parseDirName("values"));
+    }
+
+    public void testAllDimensions() {
+        ResourceQualifiers qualifiers = ResourceQualifiers.parse(
+                "mcc310-mnc4-fr-rFR-large-land-hdpi-finger-keyshidden-qwerty-dpad-480x320-v3");
+        assertNotNull(qualifiers);
+        assertEquals(310, qualifiers.get(ResourceQualifiers.MCC));
+        assertEquals(4, qualifiers.get(ResourceQualifiers.MNC));
+        assertEquals(ResourceQualifiers.parse("fr").get(ResourceQualifiers.LANGUAGE),
+                qualifiers.get(ResourceQualifiers.LANGUAGE));
+        assertEquals(ResourceQualifiers.parse("rFR").get(ResourceQualifiers.REGION),
+                qualifiers.get(ResourceQualifiers.REGION));
+        assertEquals(3, qualifiers.get(ResourceQualifiers.SCREEN_SIZE));
+        assertEquals(2, qualifiers.get(ResourceQualifiers.ORIENTATION));
+        assertEquals(240, qualifiers.get(ResourceQualifiers.DENSITY));
+        assertEquals(3, qualifiers.get(ResourceQualifiers.TOUCHSCREEN));
+        assertEquals(2, qualifiers.get(ResourceQualifiers.KEYBOARD));
+        assertEquals(2, qualifiers.get(ResourceQualifiers.TEXT_INPUT));
+        assertEquals(2, qualifiers.get(ResourceQualifiers.NAVIGATION));
+        assertEquals(480 << 16 | 320, qualifiers.get(ResourceQualifiers.SCREEN_DIMENSION));
+        assertEquals(3, qualifiers.get(ResourceQualifiers.VERSION));
+    }
+
+    public void testDirName() {
+        assertEquals(ResourceQualifiers.parse("fr-land"), ResourceQualifiers.parseDirName("drawable-fr-land"));
+        assertNull(ResourceQualifiers.parseDirName("drawable-foo"));
+    }
+
+    public void testScreenDimensionOrderOfSides() {
+        assertEquals(ResourceQualifiers.parse("480x320"), ResourceQualifiers.parse("320x480"));
+    }
+
+    public void testDensities() {
+        assertEquals(120, ResourceQualifiers.parse("ldpi").get(ResourceQualifiers.DENSITY));
+        assertEquals(160, ResourceQualifiers.parse("mdpi").get(ResourceQualifiers.DENSITY));
+        assertEquals(ResourceQualifiers.NO_DENSITY, ResourceQualifiers.parse("nodpi").get(ResourceQualifiers.DENSITY));
+        assertEquals(200, ResourceQualifiers.parse("200dpi").get(ResourceQualifiers.DENSITY));
+    }
+
+    public void testOutOfOrder() {
+        assertNull(ResourceQualifiers.parse("land-fr"));
+        assertNull(ResourceQualifiers.parse("v3-hdpi"));
+        assertNull(ResourceQualifiers.parse("rFR-fr"));
+    }
+
+    public void testRepeatedDimension() {
+        assertNull(ResourceQualifiers.parse("mdpi-hdpi"));
+        assertNull(ResourceQualifiers.parse("fr-en"));
+    }
+
+    public void testUnknown() {
+        assertNull(ResourceQualifiers.parse("foo"));
+        assertNull(ResourceQualifiers.parse("fr-foo"));
+        assertNull(ResourceQualifiers.parse("FR"));
+        assertNull(ResourceQualifiers.parse("rfr"));
+        assertNull(ResourceQualifiers.parse("v"));
+        assertNull(ResourceQualifiers.parse("v3x"));
+        assertNull(ResourceQualifiers.parse("0x480"));
+    }
+
+    public void testCompatibleWithUnspecifiedDevice() {
+        assertTrue(ResourceQualifiers.parse("fr-land-v3").isCompatible(ResourceQualifiers.NONE));
+        assertTrue(ResourceQualifiers.NONE.isCompatible(ResourceQualifiers.parse("fr-land-v3")));
+    }
+
+    public void testIncompatibleQualifier() {
+        assertFalse(ResourceQualifiers.parse("fr").isCompatible(ResourceQualifiers.parse("en")));
+        assertFalse(ResourceQualifiers.parse("land").isCompatible(ResourceQualifiers.parse("port")));
+        assertTrue(ResourceQualifiers.parse("fr").isCompatible(ResourceQualifiers.parse("fr-rFR")));
+    }
+
+    public void testDensityIsAlwaysCompatible() {
+        assertTrue(ResourceQualifiers.parse("ldpi").isCompatible(ResourceQualifiers.parse("hdpi")));
+        assertTrue(ResourceQualifiers.parse("hdpi").isCompatible(ResourceQualifiers.parse("ldpi")));
+    }
+
+    public void testVersionCap() {
+        ResourceQualifiers device = ResourceQualifiers.parse("v4");
+        assertTrue(ResourceQualifiers.parse("v3").isCompatible(device));
+        assertTrue(ResourceQualifiers.parse("v4").isCompatible(device));
+        assertFalse(ResourceQualifiers.parse("v5").isCompatible(device));
+    }
+
+    public void testDensityDistance() {
+        ResourceQualifiers device = ResourceQualifiers.parse("mdpi");
+        assertEquals(0, ResourceQualifiers.NONE.getDensityDistance(device));
+        assertEquals(0, ResourceQualifiers.parse("nodpi").getDensityDistance(device));
+        assertEquals(80, ResourceQualifiers.parse("hdpi").getDensityDistance(device));
+        // a lower density counts twice: 40 below is as far as 80 above
+        assertEquals(80, ResourceQualifiers.parse("ldpi").getDensityDistance(device));
+        assertTrue(ResourceQualifiers.parse("200dpi").getDensityDistance(device) <
+                ResourceQualifiers.parse("120dpi").getDensityDistance(device));
+    }
+}
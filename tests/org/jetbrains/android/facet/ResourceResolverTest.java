@@ -0,0 +1,92 @@
+package org.jetbrains.android.facet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Alexey Efimov
+ */
+public class ResourceResolverTest extends TestCase {
+    private static List<String> order(String device, String... dirNames) {
+        String[] paths = new String[dirNames.length];
+        for (int i = 0; i < dirNames.length; i++) {
+            paths[i] = "/res/" + dirNames[i] + "/file.xml";
+        }
+        ResourceQualifiers qualifiers = ResourceQualifiers.parse(device);
+        assertNotNull(qualifiers);
+        return new ResourceResolver(qualifiers).order(Arrays.asList(paths));
+    }
+
+    private static String choose(String device, String... dirNames) {
+        List<String> ordered = order(device, dirNames);
+        return ordered.isEmpty() ? null : ResourceResolver.getDirName(ordered.get(0));
+    }
+
+    public void testDefaultOnly() {
+        assertEquals("values", choose("fr-rFR-land", "values"));
+    }
+
+    public void testMostSpecificMatch() {
+        assertEquals("values-fr-rFR", choose("fr-rFR", "values", "values-fr", "values-fr-rFR"));
+        assertEquals("values-fr", choose("fr-rCA", "values", "values-fr", "values-fr-rFR"));
+    }
+
+    public void testBestFirstThenTheRest() {
+        assertEquals(Arrays.asList("/res/values-fr/file.xml", "/res/values/file.xml", "/res/values-en/file.xml"),
+                order("fr", "values", "values-fr", "values-en"));
+    }
+
+    public void testIncompatibleDropped() {
+        assertEquals("values", choose("en", "values", "values-fr"));
+        assertEquals(Collections.<String>emptyList(), order("en", "values-fr"));
+    }
+
+    public void testUnknownQualifiersIgnored() {
+        assertEquals("values", choose("fr", "values", "values-foo", "values-land-fr"));
+    }
+
+    public void testPrecedenceOfQualifiers() {
+        // language goes before orientation, even though the other variant matches more qualifiers
+        assertEquals("values-fr", choose("fr-land-finger", "values-fr", "values-land-finger"));
+        assertEquals("values-land", choose("fr-land", "values", "values-land"));
+    }
+
+    public void testUnspecifiedDeviceDimensionIgnored() {
+        assertEquals("drawable", choose("", "drawable", "drawable-land"));
+    }
+
+    public void testNearestDensity() {
+        assertEquals("drawable-mdpi", choose("ldpi", "drawable-hdpi", "drawable-mdpi"));
+        assertEquals("drawable-hdpi", choose("hdpi", "drawable-ldpi", "drawable-mdpi", "drawable-hdpi"));
+    }
+
+    public void testHigherDensityPreferred() {
+        // both are 40 away
+        assertEquals("drawable-hdpi", choose("200dpi", "drawable-mdpi", "drawable-hdpi"));
+    }
+
+    public void testNoDensity() {
+        assertEquals("drawable-nodpi", choose("hdpi", "drawable-mdpi", "drawable-nodpi"));
+    }
+
+    public void testDensityTieBrokenByDirectoryName() {
+        // without a qualifier resources are mdpi, so both are as far from the device
+        assertEquals("drawable", choose("hdpi", "drawable-mdpi", "drawable"));
+        // 80 above and 40 below are as far
+        assertEquals("drawable-hdpi", choose("mdpi", "drawable-ldpi", "drawable-hdpi"));
+    }
+
+    public void testVersionCap() {
+        assertEquals("drawable-v4", choose("v4", "drawable", "drawable-v3", "drawable-v4", "drawable-v5"));
+        assertEquals("drawable-v3", choose("v3", "drawable", "drawable-v3", "drawable-v4", "drawable-v5"));
+        assertEquals("drawable", choose("v2", "drawable", "drawable-v3"));
+        assertEquals(Collections.<String>emptyList(), order("v2", "drawable-v3"));
+    }
+
+    public void testVersionGoesLast() {
+        assertEquals("drawable-land", choose("land-v4", "drawable-land", "drawable-v4"));
+    }
+}